@@ -0,0 +1,153 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile.bench;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import org.headb.sandpile.SandpileConfiguration;
+import org.headb.sandpile.SandpileGraph;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the main SandpileGraph algorithms, on the same lattices
+ * that SandpileController's makeGrid(), makeHoneycomb() and makeHexGrid()
+ * build, with sinks all around. Run them with "ant bench"; see build.xml.
+ *
+ * Every operation here takes a long time compared to JMH's overhead, so each
+ * iteration is a single run of it.
+ * @author Bryan Head
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EngineBenchmark {
+
+    /**
+     * A lattice with about the given number of vertices.
+     */
+    @State(Scope.Benchmark)
+    public static class GraphState {
+
+        @Param({"grid", "honeycomb", "hexgrid"})
+        public String lattice;
+        @Param({"1000", "10000", "100000", "1000000", "10000000"})
+        public int vertices;
+        public SandpileGraph graph;
+
+        @Setup(Level.Trial)
+        public void buildGraph() {
+            graph = Workloads.buildLattice(lattice, vertices);
+        }
+    }
+
+    /**
+     * A lattice and a config on it to start from. uniform has 2 * the max
+     * degree grains on every vertex; max_stable is the max stable config plus
+     * a grain in the middle, which sets off the biggest avalanche a single
+     * grain can; single_source is 2 grains per vertex, all piled in the middle.
+     */
+    @State(Scope.Benchmark)
+    public static class ConfigState extends GraphState {
+
+        @Param({"uniform", "max_stable", "single_source"})
+        public String config;
+        public SandpileConfiguration start;
+        // The updater benchmark changes its config in place, so it gets a
+        // fresh copy of start each time.
+        public SandpileConfiguration scratch;
+
+        @Setup(Level.Trial)
+        public void buildStart() {
+            start = Workloads.buildConfig(graph, config);
+        }
+
+        @Setup(Level.Iteration)
+        public void copyConfig() {
+            scratch = new SandpileConfiguration(start);
+        }
+    }
+
+    @Benchmark
+    public SandpileConfiguration inPlaceParallelUpdater(ConfigState state) {
+        Iterator<SandpileConfiguration> updater = state.graph.inPlaceParallelUpdater(state.scratch);
+        while (updater.hasNext()) {
+            updater.next();
+        }
+        return state.scratch;
+    }
+
+    @Benchmark
+    public SandpileConfiguration stabilizeConfig(ConfigState state) throws InterruptedException {
+        return state.graph.stabilizeConfig(state.start);
+    }
+
+    /**
+     * A lattice and config as in ConfigState, with each way of stabilizing.
+     * StrategyCheck makes sure they all agree.
+     */
+    @State(Scope.Benchmark)
+    public static class StrategyState extends ConfigState {
+
+        @Param({"TOPPLING", "LEAST_ACTION", "MULTISCALE"})
+        public SandpileGraph.StabilizationStrategy strategy;
+    }
+
+    @Benchmark
+    public SandpileConfiguration stabilizeConfigWithStrategy(StrategyState state) throws InterruptedException {
+        return state.graph.stabilizeConfig(state.start, state.strategy);
+    }
+
+    @Benchmark
+    public SandpileConfiguration getEquivalentRecurrent(ConfigState state) throws InterruptedException {
+        return state.graph.getEquivalentRecurrent(state.start);
+    }
+
+    @Benchmark
+    public SandpileConfiguration getMinimalBurningConfig(GraphState state) throws InterruptedException {
+        return state.graph.getMinimalBurningConfig();
+    }
+
+    @Benchmark
+    public SandpileConfiguration getIdentityConfig(GraphState state) throws InterruptedException {
+        return state.graph.getIdentityConfig(SandpileGraph.StabilizationStrategy.TOPPLING);
+    }
+}
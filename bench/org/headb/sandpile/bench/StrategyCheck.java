@@ -0,0 +1,97 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile.bench;
+
+import org.headb.sandpile.SandpileConfiguration;
+import org.headb.sandpile.SandpileGraph;
+
+/**
+ * Checks that the LEAST_ACTION and MULTISCALE strategies stabilize to the
+ * same config that plain stabilizeConfig() does, on grids with each of the
+ * benchmark configs, and prints how long each took. Exits with status 1 if
+ * any of them disagree. Run it with "ant check-strategies"; see build.xml.
+ *
+ * The arguments are the numbers of vertices to try; the default is 10000.
+ * @author Bryan Head
+ */
+public class StrategyCheck {
+
+    private static final String[] CONFIGS = {"uniform", "max_stable", "single_source"};
+    private static final SandpileGraph.StabilizationStrategy[] STRATEGIES = {
+        SandpileGraph.StabilizationStrategy.LEAST_ACTION,
+        SandpileGraph.StabilizationStrategy.MULTISCALE
+    };
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] sizes;
+        if (args.length == 0) {
+            sizes = new int[]{10000};
+        } else {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        boolean ok = true;
+        for (int vertices : sizes) {
+            SandpileGraph graph = Workloads.buildLattice("grid", vertices);
+            for (String config : CONFIGS) {
+                SandpileConfiguration start = Workloads.buildConfig(graph, config);
+                long time = System.nanoTime();
+                SandpileConfiguration expected = graph.stabilizeConfig(start);
+                report(vertices, config, "stabilizeConfig", time, null);
+                for (SandpileGraph.StabilizationStrategy strategy : STRATEGIES) {
+                    time = System.nanoTime();
+                    SandpileConfiguration result = graph.stabilizeConfig(start, strategy);
+                    String problem = null;
+                    if (!result.equals(expected)) {
+                        problem = "differs from stabilizeConfig() at " + result.size() + " vs " + expected.size() + " vertices";
+                        for (int v = 0; v < expected.size() && v < result.size(); v++) {
+                            if (result.getQuick(v) != expected.getQuick(v)) {
+                                problem = "differs from stabilizeConfig() first at vertex " + v + ": " + result.getQuick(v) + " instead of " + expected.getQuick(v);
+                                break;
+                            }
+                        }
+                        ok = false;
+                    }
+                    report(vertices, config, strategy.toString(), time, problem);
+                }
+            }
+        }
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static void report(int vertices, String config, String method, long start, String problem) {
+        double millis = (System.nanoTime() - start) / 1e6;
+        System.out.println("grid " + vertices + " " + config + " " + method + ": " + millis + " ms"
+                + (problem == null ? "" : " FAILED, " + problem));
+    }
+}
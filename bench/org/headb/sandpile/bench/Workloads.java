@@ -0,0 +1,109 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile.bench;
+
+import org.headb.sandpile.SandpileConfiguration;
+import org.headb.sandpile.SandpileController;
+import org.headb.sandpile.SandpileGraph;
+
+/**
+ * The lattices and configs the benchmarks and StrategyCheck run on. This
+ * doesn't use JMH, so StrategyCheck can be built without it.
+ * @author Bryan Head
+ */
+final class Workloads {
+
+    private Workloads() {
+    }
+
+    /**
+     * Builds the named lattice with about the given number of vertices, the
+     * same way the app does.
+     */
+    static SandpileGraph buildLattice(String lattice, int vertices) {
+        SandpileController controller = new SandpileController(null, new SandpileGraph());
+        int border = SandpileController.SINKS_BORDER;
+        if (lattice.equals("grid")) {
+            int side = (int) Math.round(Math.sqrt(vertices));
+            controller.makeGrid(side, side, 0, 0, border, border, border, border);
+        } else if (lattice.equals("honeycomb")) {
+            // A honeycomb of radius r has about 3r^2 vertices.
+            int radius = (int) Math.round(Math.sqrt(vertices / 3.0));
+            controller.makeHoneycomb(radius, 0, 0, border);
+        } else if (lattice.equals("hexgrid")) {
+            int side = (int) Math.round(Math.sqrt(vertices));
+            controller.makeHexGrid(side, side, 0, 0, border, border, border, border);
+        } else {
+            throw new IllegalArgumentException("Unknown lattice: " + lattice);
+        }
+        return controller.getGraph();
+    }
+
+    static SandpileConfiguration buildConfig(SandpileGraph graph, String config) {
+        int n = graph.numVertices();
+        int middle = middleNonSink(graph);
+        SandpileConfiguration result;
+        if (config.equals("uniform")) {
+            int maxDegree = 0;
+            for (int v = 0; v < n; v++) {
+                maxDegree = Math.max(maxDegree, graph.degreeQuick(v));
+            }
+            result = graph.getUniformConfig(2 * maxDegree);
+        } else if (config.equals("max_stable")) {
+            result = graph.getMaxConfig();
+            result.increaseQuick(middle, 1);
+        } else if (config.equals("single_source")) {
+            result = graph.getUniformConfig(0);
+            result.setQuick(middle, 2 * n);
+        } else {
+            throw new IllegalArgumentException("Unknown config: " + config);
+        }
+        for (int v = 0; v < n; v++) {
+            if (graph.isSinkQuick(v)) {
+                result.setQuick(v, 0);
+            }
+        }
+        return result;
+    }
+
+    // The lattices are built a row or ring at a time, so the non-sink
+    // closest to the middle of the vertex order is well inside the lattice.
+    private static int middleNonSink(SandpileGraph graph) {
+        int n = graph.numVertices();
+        for (int d = 0; d < n; d++) {
+            if (n / 2 + d < n && !graph.isSinkQuick(n / 2 + d)) {
+                return n / 2 + d;
+            }
+            if (n / 2 - d >= 0 && !graph.isSinkQuick(n / 2 - d)) {
+                return n / 2 - d;
+            }
+        }
+        throw new IllegalArgumentException("The graph has no non-sinks");
+    }
+}
@@ -0,0 +1,105 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Picks indices at random in constant time, each with probability
+ * proportional to a given weight, using Vose's alias method. Each index gets a
+ * bucket of equal probability. A bucket holds part of its own index's weight
+ * and is topped up with weight from one other index, its alias.
+ * @author Bryan Head
+ */
+public class AliasTable {
+
+    private double[] probability;
+    private int[] alias;
+
+    /**
+     * @param weights The weight of each index. None may be negative, and at
+     * least one must be positive.
+     */
+    public AliasTable(double[] weights) {
+        int n = weights.length;
+        double total = 0.0;
+        for (int i = 0; i < n; i++) {
+            if (weights[i] < 0 || Double.isNaN(weights[i])) {
+                throw new IllegalArgumentException("Weights can't be negative.");
+            }
+            total += weights[i];
+        }
+        if (!(total > 0)) {
+            throw new IllegalArgumentException("At least one weight must be positive.");
+        }
+        probability = new double[n];
+        alias = new int[n];
+        double[] scaled = new double[n];
+        TIntArrayList small = new TIntArrayList();
+        TIntArrayList large = new TIntArrayList();
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / total;
+            if (scaled[i] < 1.0) {
+                small.add(i);
+            } else {
+                large.add(i);
+            }
+        }
+        while (!small.isEmpty() && !large.isEmpty()) {
+            int s = small.removeAt(small.size() - 1);
+            int l = large.get(large.size() - 1);
+            probability[s] = scaled[s];
+            alias[s] = l;
+            scaled[l] -= 1.0 - scaled[s];
+            if (scaled[l] < 1.0) {
+                large.removeAt(large.size() - 1);
+                small.add(l);
+            }
+        }
+        // Whatever is left is only off from 1 by rounding error.
+        for (int i = 0; i < large.size(); i++) {
+            probability[large.getQuick(i)] = 1.0;
+        }
+        for (int i = 0; i < small.size(); i++) {
+            probability[small.getQuick(i)] = 1.0;
+        }
+    }
+
+    public int size() {
+        return probability.length;
+    }
+
+    /**
+     * Returns a random index.
+     */
+    public int sample(SplitMixRandom random) {
+        int i = random.nextInt(probability.length);
+        return random.nextDouble() < probability[i] ? i : alias[i];
+    }
+}
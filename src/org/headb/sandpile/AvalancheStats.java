@@ -0,0 +1,109 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+/**
+ * Statistics about an avalanche, the firings set off by a change to a stable
+ * configuration. Filled in, one generation at a time, by the updaters
+ * returned by SandpileGraph.inPlaceParallelUpdater() and
+ * SandpileGraph.concurrentUpdater() when given an AvalancheStats.
+ * @author Bryan Head
+ */
+public class AvalancheStats {
+
+    private long topplings = 0;
+    private int area = 0;
+    private int duration = 0;
+    private long grainsLost = 0;
+    private int lastGenerationSize = 0;
+
+    public AvalancheStats() {
+    }
+
+    /**
+     * Copies the statistics recorded so far in other.
+     */
+    public AvalancheStats(AvalancheStats other) {
+        topplings = other.topplings;
+        area = other.area;
+        duration = other.duration;
+        grainsLost = other.grainsLost;
+        lastGenerationSize = other.lastGenerationSize;
+    }
+
+    /**
+     * Returns the total number of times any vertex fired.
+     */
+    public long getTopplings() {
+        return topplings;
+    }
+
+    /**
+     * Returns the number of different vertices that fired.
+     */
+    public int getArea() {
+        return area;
+    }
+
+    /**
+     * Returns the number of generations the avalanche lasted.
+     */
+    public int getDuration() {
+        return duration;
+    }
+
+    /**
+     * Returns the amount of sand that went into sinks.
+     */
+    public long getGrainsLost() {
+        return grainsLost;
+    }
+
+    /**
+     * Returns the number of vertices that fired in the last generation.
+     */
+    public int getLastGenerationSize() {
+        return lastGenerationSize;
+    }
+
+    /**
+     * Records one generation.
+     * @param topplings The number of firings in the generation.
+     * @param size The number of vertices that fired.
+     * @param newVertices The number of vertices that fired for the first time.
+     * @param grainsLost The amount of sand fired into sinks.
+     */
+    void addGeneration(long topplings, int size, int newVertices, long grainsLost) {
+        this.topplings += topplings;
+        this.lastGenerationSize = size;
+        this.area += newVertices;
+        this.duration++;
+        this.grainsLost += grainsLost;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+/**
+ * A frozen copy of the edges of a SandpileGraph in compressed sparse row form.
+ * The outgoing edges of vertex v are dest[i] and wt[i] for
+ * rowStart[v] <= i < rowStart[v + 1]. Everything is in flat int arrays, so
+ * loops over it don't have to chase pointers through EdgeOffsetLists.
+ * SandpileGraph.getCompressedGraph() builds one when needed; a snapshot never
+ * changes, even if the graph it came from does.
+ * @author Bryan Head
+ */
+public class CompressedGraph {
+
+    final int numVertices;
+    final int[] rowStart;
+    final int[] dest;
+    final int[] wt;
+    final int[] degree;
+    // Derived from the edges the first time they're asked for.
+    private CompressedGraph reverse;
+    private int[] sinks;
+    private int[] nonSinks;
+
+    CompressedGraph(int[] rowStart, int[] dest, int[] wt, int[] degree) {
+        this.numVertices = degree.length;
+        this.rowStart = rowStart;
+        this.dest = dest;
+        this.wt = wt;
+        this.degree = degree;
+    }
+
+    CompressedGraph(SandpileGraph graph) {
+        numVertices = graph.numVertices();
+        rowStart = new int[numVertices + 1];
+        degree = new int[numVertices];
+        int numEdges = 0;
+        for (int v = 0; v < numVertices; v++) {
+            rowStart[v] = numEdges;
+            numEdges += graph.getOffsetList(v).size();
+        }
+        rowStart[numVertices] = numEdges;
+        dest = new int[numEdges];
+        wt = new int[numEdges];
+        for (int v = 0; v < numVertices; v++) {
+            EdgeOffsetList offsetList = graph.getOffsetList(v);
+            int s = offsetList.size();
+            int i = rowStart[v];
+            for (int k = 0; k < s; k++, i++) {
+                dest[i] = v + offsetList.destOffsetQuick(k);
+                wt[i] = offsetList.wtQuick(k);
+            }
+            degree[v] = offsetList.degree();
+        }
+    }
+
+    public int numVertices() {
+        return numVertices;
+    }
+
+    public int numEdges() {
+        return dest.length;
+    }
+
+    public int degree(int v) {
+        return degree[v];
+    }
+
+    /**
+     * Returns the index of the first outgoing edge of v.
+     */
+    public int edgesStart(int v) {
+        return rowStart[v];
+    }
+
+    /**
+     * Returns one past the index of the last outgoing edge of v.
+     */
+    public int edgesEnd(int v) {
+        return rowStart[v + 1];
+    }
+
+    public int dest(int edge) {
+        return dest[edge];
+    }
+
+    public int wt(int edge) {
+        return wt[edge];
+    }
+
+    /**
+     * Returns the snapshot with every edge turned around, so that its
+     * outgoing edges of v are the incoming edges of v here, in order of
+     * source. Its degrees are the total weights of the incoming edges. Built
+     * the first time it is asked for.
+     */
+    public synchronized CompressedGraph reverse() {
+        if (reverse == null) {
+            int[] revRowStart = new int[numVertices + 1];
+            int[] revDegree = new int[numVertices];
+            for (int i = 0; i < dest.length; i++) {
+                revRowStart[dest[i] + 1]++;
+                revDegree[dest[i]] += wt[i];
+            }
+            for (int v = 0; v < numVertices; v++) {
+                revRowStart[v + 1] += revRowStart[v];
+            }
+            int[] next = new int[numVertices];
+            System.arraycopy(revRowStart, 0, next, 0, numVertices);
+            int[] revDest = new int[dest.length];
+            int[] revWt = new int[dest.length];
+            for (int v = 0; v < numVertices; v++) {
+                for (int i = rowStart[v]; i < rowStart[v + 1]; i++) {
+                    int j = next[dest[i]]++;
+                    revDest[j] = v;
+                    revWt[j] = wt[i];
+                }
+            }
+            reverse = new CompressedGraph(revRowStart, revDest, revWt, revDegree);
+            reverse.reverse = this;
+        }
+        return reverse;
+    }
+
+    /**
+     * Returns the vertices with no outgoing edges, in order. Don't change it.
+     */
+    synchronized int[] sinks() {
+        if (sinks == null) {
+            splitSinks();
+        }
+        return sinks;
+    }
+
+    /**
+     * Returns the vertices with outgoing edges, in order. Don't change it.
+     */
+    synchronized int[] nonSinks() {
+        if (nonSinks == null) {
+            splitSinks();
+        }
+        return nonSinks;
+    }
+
+    private void splitSinks() {
+        int numSinks = 0;
+        for (int v = 0; v < numVertices; v++) {
+            if (degree[v] == 0) {
+                numSinks++;
+            }
+        }
+        sinks = new int[numSinks];
+        nonSinks = new int[numVertices - numSinks];
+        for (int v = 0, s = 0, n = 0; v < numVertices; v++) {
+            if (degree[v] == 0) {
+                sinks[s++] = v;
+            } else {
+                nonSinks[n++] = v;
+            }
+        }
+    }
+
+    /**
+     * Returns a hash of the edges, for telling whether something saved for one
+     * graph belongs to another.
+     */
+    long fingerprint() {
+        long hash = numVertices;
+        for (int v = 0; v < numVertices; v++) {
+            hash = hash * 31 + rowStart[v + 1];
+        }
+        for (int i = 0; i < dest.length; i++) {
+            hash = (hash * 31 + dest[i]) * 31 + wt[i];
+        }
+        return hash;
+    }
+}
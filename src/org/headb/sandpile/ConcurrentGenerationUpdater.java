@@ -0,0 +1,319 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Does the same thing as the iterator returned by
+ * SandpileGraph.inPlaceParallelUpdaterStartingWith(), but splits each
+ * generation among several worker threads. Every call to next() gives exactly
+ * the same configuration as the single threaded updater would.
+ *
+ * Each generation happens in two steps. First, every worker takes a chunk of
+ * the unstable vertices, fires them, and writes the resulting changes in sand
+ * into its own buffers, one buffer per stripe of vertices. Second, each worker
+ * takes one stripe and applies every buffer for that stripe to the config.
+ * Since no two workers ever write to the same vertex, no locking is needed.
+ * @author Bryan Head
+ */
+public class ConcurrentGenerationUpdater implements Iterator<SandpileConfiguration> {
+
+    // Generations smaller than this aren't worth handing out to the workers.
+    private static final int MIN_CONCURRENT_GENERATION = 2048;
+    private SandpileGraph graph;
+    private CompressedGraph csr;
+    private SandpileConfiguration config;
+    private SandpileGraph.FiringMode mode;
+    private ExecutorService pool;
+    private int workers;
+    private int stripeSize;
+    private IntGenerationalQueue unstables;
+    private boolean[] added;
+    private int[] generation;
+    private int[] timesToFire;
+    private int generationLength;
+    // changes[w][s] holds (vertex, amount) pairs written by worker w for
+    // vertices in stripe s.
+    private TIntArrayList[][] changes;
+    private TIntArrayList[] nextUnstables;
+    private List<Callable<Object>> fireTasks;
+    private AvalancheStats stats;
+    private boolean[] toppled;
+    // The sand each worker fired into sinks this generation.
+    private long[] lost;
+    private List<Callable<Object>> applyTasks;
+
+    public ConcurrentGenerationUpdater(SandpileGraph graph, SandpileConfiguration config, TIntArrayList startingVertices, SandpileGraph.FiringMode mode, ExecutorService pool, int workers) {
+        this(graph, config, startingVertices, mode, pool, workers, null);
+    }
+
+    /**
+     * Creates an updater that also adds each generation to stats, if it
+     * isn't null.
+     */
+    public ConcurrentGenerationUpdater(SandpileGraph graph, SandpileConfiguration config, TIntArrayList startingVertices, SandpileGraph.FiringMode mode, ExecutorService pool, int workers, AvalancheStats stats) {
+        this.graph = graph;
+        this.csr = graph.getCompressedGraph();
+        this.config = config;
+        this.mode = mode;
+        this.pool = pool;
+        this.workers = Math.max(workers, 1);
+        int n = graph.numVertices();
+        stripeSize = Math.max((n + this.workers - 1) / this.workers, 1);
+        unstables = new IntGenerationalQueue(n);
+        added = new boolean[n];
+        generation = new int[n];
+        timesToFire = new int[n];
+        this.stats = stats;
+        toppled = stats != null ? new boolean[n] : null;
+        for (int i = 0; i < startingVertices.size(); i++) {
+            int v = startingVertices.getQuick(i);
+            if (config.get(v) >= graph.degreeQuick(v) && !graph.isSinkQuick(v)) {
+                unstables.addUnsafe(v);
+                added[v] = true;
+            }
+        }
+        changes = new TIntArrayList[this.workers][this.workers];
+        nextUnstables = new TIntArrayList[this.workers];
+        lost = new long[this.workers];
+        fireTasks = new ArrayList<Callable<Object>>(this.workers);
+        applyTasks = new ArrayList<Callable<Object>>(this.workers);
+        for (int w = 0; w < this.workers; w++) {
+            for (int s = 0; s < this.workers; s++) {
+                changes[w][s] = new TIntArrayList();
+            }
+            nextUnstables[w] = new TIntArrayList();
+            final int worker = w;
+            fireTasks.add(new Callable<Object>() {
+
+                public Object call() {
+                    fireChunk(worker);
+                    return null;
+                }
+            });
+            applyTasks.add(new Callable<Object>() {
+
+                public Object call() {
+                    applyStripe(worker);
+                    return null;
+                }
+            });
+        }
+    }
+
+    public boolean hasNext() {
+        return unstables.hasNextGeneration();
+    }
+
+    public SandpileConfiguration next() {
+        generationLength = unstables.nextGenerationLength();
+        unstables.goToNextGeneration();
+        for (int i = 0; i < generationLength; i++) {
+            // Vertices stay marked as added until they fire so that their
+            // neighbors don't queue them up a second time.
+            generation[i] = unstables.nextItemUnsafe();
+        }
+        if (generationLength < MIN_CONCURRENT_GENERATION || workers == 1) {
+            fireSequentially();
+        } else {
+            runAll(fireTasks);
+            runAll(applyTasks);
+            for (int s = 0; s < workers; s++) {
+                TIntArrayList next = nextUnstables[s];
+                int size = next.size();
+                for (int i = 0; i < size; i++) {
+                    unstables.addUnsafe(next.getQuick(i));
+                }
+            }
+        }
+        if (stats != null) {
+            recordGeneration();
+        }
+        return config;
+    }
+
+    private void recordGeneration() {
+        long fired = 0;
+        int newlyToppled = 0;
+        for (int i = 0; i < generationLength; i++) {
+            int v = generation[i];
+            fired += timesToFire[i];
+            if (!toppled[v]) {
+                toppled[v] = true;
+                newlyToppled++;
+            }
+        }
+        long totalLost = 0;
+        for (int w = 0; w < workers; w++) {
+            totalLost += lost[w];
+        }
+        stats.addGeneration(fired, generationLength, newlyToppled, totalLost);
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Runs the tasks and waits for all of them to finish, even if this thread
+     * is interrupted in the meantime. Stopping half way through a generation
+     * would leave the config in a state the single threaded updater can never
+     * produce. The interrupt is passed on once the generation is done.
+     */
+    private void runAll(List<Callable<Object>> tasks) {
+        List<Future<Object>> futures = new ArrayList<Future<Object>>(tasks.size());
+        for (Callable<Object> task : tasks) {
+            futures.add(pool.submit(task));
+        }
+        boolean interrupted = false;
+        for (Future<Object> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int times(int v) {
+        if (mode == SandpileGraph.FiringMode.DIVIDE) {
+            return config.getQuick(v) / csr.degree[v];
+        }
+        return 1;
+    }
+
+    private void fireChunk(int worker) {
+        TIntArrayList[] myChanges = changes[worker];
+        for (int s = 0; s < workers; s++) {
+            myChanges[s].resetQuick();
+        }
+        int chunkSize = (generationLength + workers - 1) / workers;
+        int begin = worker * chunkSize;
+        int end = Math.min(begin + chunkSize, generationLength);
+        long myLost = 0;
+        // Read every firing count before any sand moves.
+        for (int i = begin; i < end; i++) {
+            timesToFire[i] = times(generation[i]);
+        }
+        for (int i = begin; i < end; i++) {
+            int v = generation[i];
+            int times = timesToFire[i];
+            added[v] = false;
+            int edgesEnd = csr.rowStart[v + 1];
+            for (int k = csr.rowStart[v]; k < edgesEnd; k++) {
+                int dest = csr.dest[k];
+                if (csr.degree[dest] == 0) {
+                    myLost += (long) csr.wt[k] * times;
+                }
+                TIntArrayList stripe = myChanges[dest / stripeSize];
+                stripe.add(dest);
+                stripe.add(csr.wt[k] * times);
+            }
+            TIntArrayList stripe = myChanges[v / stripeSize];
+            stripe.add(v);
+            stripe.add(-csr.degree[v] * times);
+        }
+        lost[worker] = myLost;
+    }
+
+    private void applyStripe(int stripe) {
+        TIntArrayList next = nextUnstables[stripe];
+        next.resetQuick();
+        for (int w = 0; w < workers; w++) {
+            TIntArrayList pairs = changes[w][stripe];
+            int size = pairs.size();
+            for (int i = 0; i < size; i += 2) {
+                config.increaseQuick(pairs.getQuick(i), pairs.getQuick(i + 1));
+            }
+        }
+        // Only check stability once all the sand for this stripe is in, since
+        // a vertex can go over its degree and back below within a generation.
+        for (int w = 0; w < workers; w++) {
+            TIntArrayList pairs = changes[w][stripe];
+            int size = pairs.size();
+            for (int i = 0; i < size; i += 2) {
+                int v = pairs.getQuick(i);
+                int degree = csr.degree[v];
+                if (!added[v] && degree > 0 && config.getQuick(v) >= degree) {
+                    next.add(v);
+                    added[v] = true;
+                }
+            }
+        }
+    }
+
+    private void fireSequentially() {
+        for (int i = 0; i < generationLength; i++) {
+            timesToFire[i] = times(generation[i]);
+        }
+        long myLost = 0;
+        for (int i = 0; i < generationLength; i++) {
+            int v = generation[i];
+            int times = timesToFire[i];
+            added[v] = false;
+            int edgesEnd = csr.rowStart[v + 1];
+            for (int k = csr.rowStart[v]; k < edgesEnd; k++) {
+                int dest = csr.dest[k];
+                config.increaseQuick(dest, csr.wt[k] * times);
+                int degree = csr.degree[dest];
+                if (degree == 0) {
+                    myLost += (long) csr.wt[k] * times;
+                } else if (!added[dest] && config.getQuick(dest) >= degree) {
+                    unstables.addUnsafe(dest);
+                    added[dest] = true;
+                }
+            }
+            int degree = csr.degree[v];
+            config.increaseQuick(v, -degree * times);
+            if (config.getQuick(v) >= degree) {
+                unstables.addUnsafe(v);
+                added[v] = true;
+            }
+        }
+        Arrays.fill(lost, 0);
+        lost[0] = myLost;
+    }
+}
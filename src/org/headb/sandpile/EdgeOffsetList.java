@@ -182,6 +182,26 @@ public class EdgeOffsetList {
         return true;
     }
 
+    @Override
+    public boolean equals(Object that) {
+        return that instanceof EdgeOffsetList && equals((EdgeOffsetList) that);
+    }
+
+    /**
+     * Hashes the edges without regard to their order, to agree with equals().
+     */
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int i = 0; i < size(); i++) {
+            int h = destOffsetQuick(i) * 0x9e3779b9 + wtQuick(i);
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            hash += h ^ (h >>> 13);
+        }
+        return hash;
+    }
+
     private void recalcDegree() {
         degree = 0;
         for (int i = 0; i < size(); i++) {
@@ -0,0 +1,190 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A configuration kept in a memory mapped file instead of on the heap, for
+ * configurations too big to comfortably fit there. The operating system pages
+ * the sand in and out as needed, so it can even be bigger than memory, and
+ * the file always holds the latest configuration: call force() to make sure
+ * it has all been written, and open() to pick up where it left off.
+ *
+ * The file has a 16 byte header (MAGIC and the number of vertices) followed
+ * by the sand on each vertex as little endian ints. Since a single mapping
+ * can't be more than 2GB, the file is mapped in 1GB segments.
+ *
+ * SandpileGraph.stabilizeConfigInPlace() and SandpileGraph.isRecurrent() work
+ * on these directly.
+ * @author Bryan Head
+ */
+public class MappedSandpileConfiguration {
+
+    public static final int MAGIC = 0x8953434d;
+    private static final int HEADER_BYTES = 16;
+    private static final int SEGMENT_SHIFT = 28;
+    private static final int SEGMENT_INTS = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_INTS - 1;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer[] buffers;
+    private IntBuffer[] segments;
+    private int size;
+
+    private MappedSandpileConfiguration(RandomAccessFile file, int size) throws IOException {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.size = size;
+        int numSegments = (int) (((long) size + SEGMENT_INTS - 1) >>> SEGMENT_SHIFT);
+        buffers = new MappedByteBuffer[numSegments];
+        segments = new IntBuffer[numSegments];
+        for (int s = 0; s < numSegments; s++) {
+            long first = (long) s << SEGMENT_SHIFT;
+            long ints = Math.min(SEGMENT_INTS, size - first);
+            buffers[s] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + 4 * first, 4 * ints);
+            buffers[s].order(ByteOrder.LITTLE_ENDIAN);
+            segments[s] = buffers[s].asIntBuffer();
+        }
+    }
+
+    /**
+     * Creates a new file holding a configuration with no sand on the given
+     * number of vertices, replacing anything already in the file.
+     */
+    public static MappedSandpileConfiguration create(File f, int size) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(f, "rw");
+        try {
+            file.setLength(0);
+            file.setLength(HEADER_BYTES + 4L * size);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(size);
+            header.flip();
+            file.getChannel().write(header, 0);
+            return new MappedSandpileConfiguration(file, size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a file written by create().
+     * @throws IOException If the file isn't a mapped configuration.
+     */
+    public static MappedSandpileConfiguration open(File f) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(f, "rw");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            file.getChannel().read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+                throw new IOException("Not a mapped sandpile configuration: " + f.getName());
+            }
+            int size = header.getInt();
+            if (size < 0 || file.length() < HEADER_BYTES + 4L * size) {
+                throw new IOException("Mapped sandpile configuration is cut short: " + f.getName());
+            }
+            return new MappedSandpileConfiguration(file, size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int v) {
+        return segments[v >>> SEGMENT_SHIFT].get(v & SEGMENT_MASK);
+    }
+
+    public void set(int v, int sand) {
+        segments[v >>> SEGMENT_SHIFT].put(v & SEGMENT_MASK, sand);
+    }
+
+    public void increase(int v, int amount) {
+        IntBuffer segment = segments[v >>> SEGMENT_SHIFT];
+        int i = v & SEGMENT_MASK;
+        segment.put(i, segment.get(i) + amount);
+    }
+
+    /**
+     * Copies the sand from config, which must have the same size.
+     */
+    public void setTo(SandpileConfiguration config) {
+        if (config.size() != size) {
+            throw new IndexOutOfBoundsException("Tried to copy a configuration of size " + config.size() + " into one of size " + size + ".");
+        }
+        for (int v = 0; v < size; v++) {
+            set(v, config.getQuick(v));
+        }
+    }
+
+    /**
+     * Returns a copy of this configuration on the heap.
+     */
+    public SandpileConfiguration toConfiguration() {
+        SandpileConfiguration config = new SandpileConfiguration(size);
+        for (int v = 0; v < size; v++) {
+            config.add(get(v));
+        }
+        return config;
+    }
+
+    /**
+     * Makes sure every change has been written to the file.
+     */
+    public void force() {
+        for (int s = 0; s < buffers.length; s++) {
+            buffers[s].force();
+        }
+    }
+
+    /**
+     * Writes any changes and closes the file. The configuration can't be
+     * used afterwards.
+     */
+    public void close() throws IOException {
+        force();
+        buffers = null;
+        segments = null;
+        channel.close();
+        file.close();
+    }
+}
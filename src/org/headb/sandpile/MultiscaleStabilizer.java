@@ -0,0 +1,346 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Stabilizes configurations coarse to fine, for large lattices. The graph is
+ * repeatedly coarsened by merging each vertex with the neighbor it shares the
+ * heaviest edge with; on grids this alternates between merging across columns
+ * and across rows. The sand is added up over the merged vertices and
+ * stabilized on the coarsest graph with an OdometerSolver. The resulting
+ * odometer is then spread back over each finer level and used as the starting
+ * point for that level's guess, which only needs a little correcting, until
+ * the finest level is corrected exactly.
+ *
+ * The result is the same as SandpileGraph.stabilizeConfig() gives.
+ * @author Bryan Head
+ */
+public class MultiscaleStabilizer {
+
+    /**
+     * Levels are coarsened until they have fewer vertices than this.
+     */
+    public static final int MIN_COARSE_VERTICES = 4096;
+    // Coarsening stops early if a level doesn't get at least this much
+    // smaller, as on graphs with few edges between non-sinks.
+    private static final double MAX_COARSE_RATIO = 0.75;
+
+    private static class Level {
+
+        CompressedGraph graph;
+        // The vertex of this level that each vertex of the next finer level
+        // was merged into.
+        int[] into;
+        // Sand on this level is the sand on the finer level times sandScale,
+        // so there is about as much sand per unit of degree on every level.
+        double sandScale;
+        // Firing a vertex of this level once is like firing the vertices
+        // merged into it odometerScale times.
+        double odometerScale;
+    }
+    private SandpileGraph graph;
+    // levels.get(0) is the graph itself.
+    private ArrayList<Level> levels = new ArrayList<Level>();
+    private long[] odometer = null;
+    private double[] levelTimes = null;
+
+    public MultiscaleStabilizer(SandpileGraph graph) {
+        this.graph = graph;
+        Level level = new Level();
+        level.graph = graph.getCompressedGraph();
+        levels.add(level);
+        while (level.graph.numVertices >= MIN_COARSE_VERTICES) {
+            Level coarse = coarsen(level.graph);
+            if (coarse.graph.numVertices > MAX_COARSE_RATIO * level.graph.numVertices) {
+                break;
+            }
+            levels.add(coarse);
+            level = coarse;
+        }
+    }
+
+    /**
+     * Returns the number of levels, including the graph itself.
+     */
+    public int numLevels() {
+        return levels.size();
+    }
+
+    /**
+     * Returns the number of vertices on the given level. Level 0 is the graph
+     * itself.
+     */
+    public int numVertices(int level) {
+        return levels.get(level).graph.numVertices;
+    }
+
+    /**
+     * Returns the number of milliseconds spent on each level during the last
+     * call to stabilize(), starting with the finest, or null if it hasn't been
+     * called.
+     */
+    public double[] getLevelTimes() {
+        return levelTimes;
+    }
+
+    /**
+     * Returns the number of times each vertex fired during the last call to
+     * stabilize(), or null if it hasn't been called.
+     */
+    public long[] getOdometer() {
+        return odometer;
+    }
+
+    /**
+     * Returns a stabilized copy of config.
+     * WARNING: If the graph does not have a global sink, this function may not end.
+     */
+    public SandpileConfiguration stabilize(SandpileConfiguration config) throws InterruptedException {
+        int numLevels = levels.size();
+        SandpileConfiguration[] configs = new SandpileConfiguration[numLevels];
+        configs[0] = config;
+        for (int k = 1; k < numLevels; k++) {
+            configs[k] = restrict(k, configs[k - 1]);
+        }
+        levelTimes = new double[numLevels];
+        long[] coarseOdometer = null;
+        SandpileConfiguration result = null;
+        for (int k = numLevels - 1; k >= 0; k--) {
+            long start = System.nanoTime();
+            OdometerSolver solver = k == 0 ? new OdometerSolver(graph) : new OdometerSolver(levels.get(k).graph);
+            if (k == numLevels - 1) {
+                // The coarsest level is stabilized outright.
+                result = solver.stabilize(configs[k]);
+                coarseOdometer = solver.getOdometer();
+            } else {
+                coarseOdometer = solver.guessOdometer(configs[k], prolong(k + 1, coarseOdometer));
+                if (k == 0) {
+                    result = solver.stabilizeWithGuess(configs[k], coarseOdometer);
+                    coarseOdometer = solver.getOdometer();
+                }
+            }
+            levelTimes[k] = (System.nanoTime() - start) / 1e6;
+        }
+        odometer = coarseOdometer;
+        return result;
+    }
+
+    /**
+     * Adds up the sand on the level finer than k over each vertex of level k.
+     */
+    private SandpileConfiguration restrict(int k, SandpileConfiguration config) {
+        Level level = levels.get(k);
+        CompressedGraph fine = levels.get(k - 1).graph;
+        CompressedGraph coarse = level.graph;
+        long[] sums = new long[coarse.numVertices];
+        for (int v = 0; v < fine.numVertices; v++) {
+            if (fine.degree[v] > 0) {
+                sums[level.into[v]] += config.getQuick(v);
+            }
+        }
+        SandpileConfiguration coarseConfig = new SandpileConfiguration(coarse.numVertices);
+        for (int a = 0; a < coarse.numVertices; a++) {
+            long sand = 0;
+            if (coarse.degree[a] > 0) {
+                sand = Math.round(sums[a] * level.sandScale);
+                sand = Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, sand));
+            }
+            coarseConfig.add((int) sand);
+        }
+        return coarseConfig;
+    }
+
+    /**
+     * Spreads the odometer of level k over the next finer level.
+     */
+    private double[] prolong(int k, long[] coarseOdometer) {
+        Level level = levels.get(k);
+        CompressedGraph fine = levels.get(k - 1).graph;
+        double[] start = new double[fine.numVertices];
+        for (int v = 0; v < fine.numVertices; v++) {
+            if (fine.degree[v] > 0) {
+                start[v] = coarseOdometer[level.into[v]] * level.odometerScale;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Merges each non-sink with the unmerged non-sink it has the heaviest
+     * edge to, if any, and returns the resulting level.
+     */
+    private static Level coarsen(CompressedGraph fine) {
+        int n = fine.numVertices;
+        int[] into = new int[n];
+        Arrays.fill(into, -1);
+        int numCoarse = 0;
+        for (int v = 0; v < n; v++) {
+            if (into[v] >= 0) {
+                continue;
+            }
+            into[v] = numCoarse;
+            if (fine.degree[v] > 0) {
+                int best = -1;
+                int bestWt = 0;
+                int end = fine.rowStart[v + 1];
+                for (int i = fine.rowStart[v]; i < end; i++) {
+                    int w = fine.dest[i];
+                    if (w != v && into[w] < 0 && fine.degree[w] > 0 && fine.wt[i] > bestWt) {
+                        best = w;
+                        bestWt = fine.wt[i];
+                    }
+                }
+                if (best >= 0) {
+                    into[best] = numCoarse;
+                }
+            }
+            numCoarse++;
+        }
+        // List the members of each coarse vertex.
+        int[] memberStart = new int[numCoarse + 1];
+        for (int v = 0; v < n; v++) {
+            memberStart[into[v] + 1]++;
+        }
+        for (int a = 0; a < numCoarse; a++) {
+            memberStart[a + 1] += memberStart[a];
+        }
+        int[] members = new int[n];
+        int[] filled = new int[numCoarse];
+        for (int v = 0; v < n; v++) {
+            int a = into[v];
+            members[memberStart[a] + filled[a]] = v;
+            filled[a]++;
+        }
+        // Add up the edges between coarse vertices, dropping the ones inside
+        // them, and count how many members of each coarse vertex touch each
+        // of its neighbors.
+        int[] rowStart = new int[numCoarse + 1];
+        TIntArrayList dest = new TIntArrayList();
+        TIntArrayList wt = new TIntArrayList();
+        TIntArrayList touching = new TIntArrayList();
+        int[] weightTo = new int[numCoarse];
+        int[] touchingTo = new int[numCoarse];
+        int[] lastMember = new int[numCoarse];
+        Arrays.fill(lastMember, -1);
+        TIntArrayList touched = new TIntArrayList();
+        for (int a = 0; a < numCoarse; a++) {
+            rowStart[a] = dest.size();
+            for (int m = memberStart[a]; m < memberStart[a + 1]; m++) {
+                int v = members[m];
+                int end = fine.rowStart[v + 1];
+                for (int i = fine.rowStart[v]; i < end; i++) {
+                    int b = into[fine.dest[i]];
+                    if (b == a) {
+                        continue;
+                    }
+                    if (weightTo[b] == 0) {
+                        touched.add(b);
+                    }
+                    weightTo[b] += fine.wt[i];
+                    if (lastMember[b] != v) {
+                        lastMember[b] = v;
+                        touchingTo[b]++;
+                    }
+                }
+            }
+            for (int t = 0; t < touched.size(); t++) {
+                int b = touched.getQuick(t);
+                dest.add(b);
+                wt.add(weightTo[b]);
+                touching.add(touchingTo[b]);
+                weightTo[b] = 0;
+                touchingTo[b] = 0;
+                lastMember[b] = -1;
+            }
+            touched.resetQuick();
+        }
+        rowStart[numCoarse] = dest.size();
+        // Just adding up the edges makes a pair of vertices fire too much sand
+        // towards a neighbor it only touches at one end, the way a pair in a
+        // row of a grid touches the next pair in the row. So each edge is also
+        // weighted by the average fraction of the two sides that touch each
+        // other. Coarse vertices have at most two members, so multiplying by
+        // 4 keeps the weights whole.
+        int[] dests = dest.toArray();
+        int[] weights = wt.toArray();
+        int divisor = 0;
+        for (int a = 0; a < numCoarse; a++) {
+            int sizeA = memberStart[a + 1] - memberStart[a];
+            for (int i = rowStart[a]; i < rowStart[a + 1]; i++) {
+                int b = dests[i];
+                int sizeB = memberStart[b + 1] - memberStart[b];
+                // Sinks have no edges back, so count them as touching fully.
+                int touchingB = sizeB;
+                for (int j = rowStart[b]; j < rowStart[b + 1]; j++) {
+                    if (dests[j] == a) {
+                        touchingB = touching.getQuick(j);
+                        break;
+                    }
+                }
+                weights[i] = 2 * weights[i] * (touching.getQuick(i) * sizeB + touchingB * sizeA) / (sizeA * sizeB);
+                divisor = gcd(divisor, weights[i]);
+            }
+        }
+        divisor = Math.max(divisor, 1);
+        long fineDegree = 0;
+        for (int v = 0; v < n; v++) {
+            fineDegree += fine.degree[v];
+        }
+        int[] degree = new int[numCoarse];
+        long coarseDegree = 0;
+        for (int a = 0; a < numCoarse; a++) {
+            for (int i = rowStart[a]; i < rowStart[a + 1]; i++) {
+                weights[i] /= divisor;
+                degree[a] += weights[i];
+            }
+            coarseDegree += degree[a];
+        }
+        Level level = new Level();
+        level.graph = new CompressedGraph(rowStart, dests, weights, degree);
+        level.into = into;
+        level.sandScale = fineDegree > 0 ? (double) coarseDegree / fineDegree : 1.0;
+        // The weights came out 4 / divisor times what the edges alone would
+        // give, which makes coarse vertices fire that many times less.
+        level.odometerScale = 4.0 / divisor / level.sandScale;
+        return level;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
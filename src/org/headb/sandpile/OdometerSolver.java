@@ -0,0 +1,502 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+import java.util.Arrays;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.stack.array.TIntArrayStack;
+
+/**
+ * Stabilizes configurations by guessing how many times each vertex fires (the
+ * odometer) before firing anything, which is much faster than plain firing
+ * when a lot of sand is dropped on a few vertices.
+ *
+ * The guess comes from solving the graph Laplacian, with conjugate gradient,
+ * for the configuration that spreads the sand evenly over the vertices around
+ * the unstable ones. Every vertex is fired that many times at once, and what
+ * is left is stabilized normally. That gives a stable configuration, but
+ * possibly from too many firings. So sets of vertices that can all be unfired
+ * once without anything becoming unstable are unfired until there are none.
+ * The odometer of a legal stabilization is the smallest one that leaves the
+ * configuration stable, so the result is exactly what
+ * SandpileGraph.stabilizeConfig() gives.
+ *
+ * The guess is only made on graphs whose edges between non-sinks are
+ * undirected. On other graphs the solver still works, it just fires
+ * everything the normal way.
+ * @author Bryan Head
+ */
+public class OdometerSolver {
+
+    // Stable configurations on the square grid average 2.125 sand per vertex,
+    // a bit over half of the degree. Other graphs are close enough for a
+    // guess. Aiming a little higher keeps the guess on the low side, and
+    // firing more is cheaper than unfiring.
+    private static final double TARGET_DENSITY = 0.55;
+    // Conjugate gradient stops once the residual has shrunk by this much.
+    private static final double TOLERANCE = 1e-5;
+    // The number of times the region the sand spreads over is shrunk to the
+    // part of it that actually fires.
+    private static final int MAX_REGION_PASSES = 16;
+    // Null when working directly on a CompressedGraph.
+    private SandpileGraph graph;
+    private CompressedGraph csr;
+    private boolean symmetric;
+    private long[] odometer = null;
+
+    public OdometerSolver(SandpileGraph graph) {
+        this.graph = graph;
+        this.csr = graph.getCompressedGraph();
+        this.symmetric = isSymmetric();
+    }
+
+    /**
+     * Creates a solver for a graph that only exists as a CompressedGraph,
+     * such as the coarse levels of a MultiscaleStabilizer.
+     */
+    OdometerSolver(CompressedGraph csr) {
+        this.graph = null;
+        this.csr = csr;
+        this.symmetric = isSymmetric();
+    }
+
+    /**
+     * Returns the number of times each vertex fired during the last call to
+     * stabilize() or stabilizeWithGuess(), or null if neither has been called.
+     */
+    public long[] getOdometer() {
+        return odometer;
+    }
+
+    /**
+     * Returns a stabilized copy of config.
+     * WARNING: If the graph does not have a global sink, this function may not end.
+     */
+    public SandpileConfiguration stabilize(SandpileConfiguration config) throws InterruptedException {
+        return stabilizeWithGuess(config, guessOdometer(config));
+    }
+
+    /**
+     * Returns a stabilized copy of config, starting by firing each vertex
+     * guess[v] times. The guess may be wrong in either direction; the result
+     * is always exact, but the closer the guess is, the faster this is. guess
+     * is used up in the process and becomes the odometer. The guess is ignored
+     * on graphs that aren't undirected.
+     * WARNING: If the graph does not have a global sink, this function may not end.
+     */
+    public SandpileConfiguration stabilizeWithGuess(SandpileConfiguration config, long[] guess) throws InterruptedException {
+        int n = csr.numVertices;
+        long[] sand = new long[n];
+        boolean guessed = false;
+        for (int v = 0; v < n; v++) {
+            sand[v] = config.getQuick(v);
+        }
+        for (int v = 0; v < n; v++) {
+            // Unfiring only finds every extra firing on undirected graphs.
+            if (!symmetric || csr.degree[v] == 0 || guess[v] < 0) {
+                guess[v] = 0;
+            }
+            if (guess[v] > 0) {
+                fire(sand, v, guess[v]);
+                guessed = true;
+            }
+        }
+        SandpileConfiguration result = new SandpileConfiguration(n);
+        for (int v = 0; v < n; v++) {
+            if (csr.degree[v] > 0 && (sand[v] > Integer.MAX_VALUE || sand[v] < Integer.MIN_VALUE)) {
+                // The guess was far enough off that the sand doesn't fit in
+                // an int, so forget it.
+                result = new SandpileConfiguration(config);
+                guess = new long[n];
+                guessed = false;
+                break;
+            }
+            // Sinks wrap around exactly as they would if fired normally.
+            result.add((int) sand[v]);
+        }
+        odometer = guess;
+        if (graph != null) {
+            graph.getStencilStabilizer().stabilizeInPlace(result, graph.getUnstables(result), odometer);
+        } else {
+            topple(result.getData(), odometer);
+        }
+        // Without a guess, everything fired legally, so nothing fired too
+        // often.
+        if (guessed) {
+            unfireExtra(result.getData(), odometer);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a guess at the odometer of config. Every entry is at least 0.
+     */
+    long[] guessOdometer(SandpileConfiguration config) throws InterruptedException {
+        return guessOdometer(config, null);
+    }
+
+    /**
+     * Returns a guess at the odometer of config, refining the rough guess in
+     * start, which may be null. Every entry is at least 0.
+     */
+    long[] guessOdometer(SandpileConfiguration config, double[] start) throws InterruptedException {
+        int n = csr.numVertices;
+        long[] guess = new long[n];
+        if (!symmetric) {
+            return guess;
+        }
+        // Grow a region out from the unstable vertices until it could hold
+        // twice the sand in it, so the sand doesn't spread to its edge. The
+        // vertices that start off firing are included too.
+        int[] index = new int[n];
+        TIntArrayList region = new TIntArrayList();
+        double mass = 0;
+        double capacity = 0;
+        for (int v = 0; v < n; v++) {
+            index[v] = -1;
+            int degree = csr.degree[v];
+            if (degree > 0 && config.getQuick(v) >= degree) {
+                index[v] = region.size();
+                region.add(v);
+                mass += config.getQuick(v);
+                capacity += TARGET_DENSITY * degree;
+            }
+        }
+        for (int i = 0; i < region.size() && capacity < 2 * mass; i++) {
+            int v = region.getQuick(i);
+            int end = csr.rowStart[v + 1];
+            for (int k = csr.rowStart[v]; k < end; k++) {
+                int w = csr.dest[k];
+                if (csr.degree[w] > 0 && index[w] < 0) {
+                    index[w] = region.size();
+                    region.add(w);
+                    mass += config.getQuick(w);
+                    capacity += TARGET_DENSITY * csr.degree[w];
+                }
+            }
+        }
+        if (start != null) {
+            for (int v = 0; v < n; v++) {
+                if (start[v] > 0 && csr.degree[v] > 0 && index[v] < 0) {
+                    index[v] = region.size();
+                    region.add(v);
+                }
+            }
+        }
+        int m = region.size();
+        if (m == 0) {
+            return guess;
+        }
+        // Solve L x = config - target on the region, with x = 0 outside it,
+        // where L is the Laplacian with the degrees on the diagonal. Vertices
+        // that come out negative don't fire, so they are taken out of the
+        // region and the rest is solved again.
+        boolean[] active = new boolean[m];
+        Arrays.fill(active, true);
+        double[] x = new double[m];
+        if (start != null) {
+            for (int i = 0; i < m; i++) {
+                x[i] = start[region.getQuick(i)];
+            }
+        }
+        for (int pass = 0; pass < MAX_REGION_PASSES; pass++) {
+            solve(region, index, active, config, x);
+            boolean shrunk = false;
+            for (int i = 0; i < m; i++) {
+                if (active[i] && x[i] < 0) {
+                    active[i] = false;
+                    x[i] = 0;
+                    shrunk = true;
+                }
+            }
+            if (!shrunk) {
+                break;
+            }
+        }
+        for (int i = 0; i < m; i++) {
+            guess[region.getQuick(i)] = Math.max(0L, (long) Math.floor(x[i]));
+        }
+        return guess;
+    }
+
+    /**
+     * Runs conjugate gradient on the active part of the region, starting from
+     * x.
+     */
+    private void solve(TIntArrayList region, int[] index, boolean[] active, SandpileConfiguration config, double[] x) throws InterruptedException {
+        int m = region.size();
+        double[] r = new double[m];
+        double[] p = new double[m];
+        double[] q = new double[m];
+        multiply(region, index, active, x, q);
+        double bb = 0.0;
+        for (int i = 0; i < m; i++) {
+            if (active[i]) {
+                int v = region.getQuick(i);
+                double b = config.getQuick(v) - TARGET_DENSITY * csr.degree[v];
+                bb += b * b;
+                r[i] = b - q[i];
+                p[i] = r[i];
+            }
+        }
+        double rr = dot(r, r);
+        double stop = bb * TOLERANCE * TOLERANCE;
+        for (int iteration = 0; iteration < m && rr > stop; iteration++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            multiply(region, index, active, p, q);
+            double alpha = rr / dot(p, q);
+            for (int i = 0; i < m; i++) {
+                x[i] += alpha * p[i];
+                r[i] -= alpha * q[i];
+            }
+            double nextRR = dot(r, r);
+            double beta = nextRR / rr;
+            rr = nextRR;
+            for (int i = 0; i < m; i++) {
+                p[i] = r[i] + beta * p[i];
+            }
+        }
+    }
+
+    /**
+     * Takes back firings until the odometer is the smallest one that leaves
+     * data stable. Each round finds the largest set of vertices that can all
+     * be unfired once with every one of them staying stable, by starting with
+     * every vertex that fired and throwing out vertices that would become
+     * unstable until none would. If the odometer is too big anywhere, the
+     * vertices where it is furthest off always form such a set, as long as no
+     * vertex gets more sand from the other non-sinks than it fires, which is
+     * true of undirected graphs.
+     */
+    private void unfireExtra(int[] data, long[] odometer) throws InterruptedException {
+        int n = csr.numVertices;
+        boolean[] inSet = new boolean[n];
+        // The sand each vertex in the set would get back from the set.
+        long[] incoming = new long[n];
+        TIntArrayList set = new TIntArrayList();
+        TIntArrayList unfiredSet = new TIntArrayList();
+        TIntArrayStack removals = new TIntArrayStack();
+        // The set found in one round is usually the best place to look in the
+        // next, so only every vertex that fired is checked once that turns up
+        // nothing.
+        boolean everywhere = true;
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            set.resetQuick();
+            if (everywhere) {
+                for (int v = 0; v < n; v++) {
+                    if (odometer[v] > 0) {
+                        set.add(v);
+                    }
+                }
+            } else {
+                for (int i = 0; i < unfiredSet.size(); i++) {
+                    int v = unfiredSet.getQuick(i);
+                    if (odometer[v] > 0) {
+                        set.add(v);
+                    }
+                }
+            }
+            for (int i = 0; i < set.size(); i++) {
+                int v = set.getQuick(i);
+                inSet[v] = true;
+                incoming[v] = 0;
+            }
+            for (int i = 0; i < set.size(); i++) {
+                int v = set.getQuick(i);
+                int end = csr.rowStart[v + 1];
+                for (int k = csr.rowStart[v]; k < end; k++) {
+                    int w = csr.dest[k];
+                    if (inSet[w]) {
+                        incoming[w] += csr.wt[k];
+                    }
+                }
+            }
+            // Unfiring v gives it back its degree and takes back what the
+            // rest of the set sent it, so it stays stable if it has less sand
+            // than that.
+            for (int i = 0; i < set.size(); i++) {
+                int v = set.getQuick(i);
+                if (data[v] >= incoming[v]) {
+                    inSet[v] = false;
+                    removals.push(v);
+                }
+            }
+            while (removals.size() > 0) {
+                int v = removals.pop();
+                int end = csr.rowStart[v + 1];
+                for (int k = csr.rowStart[v]; k < end; k++) {
+                    int w = csr.dest[k];
+                    if (inSet[w]) {
+                        incoming[w] -= csr.wt[k];
+                        if (data[w] >= incoming[w]) {
+                            inSet[w] = false;
+                            removals.push(w);
+                        }
+                    }
+                }
+            }
+            unfiredSet.resetQuick();
+            for (int i = 0; i < set.size(); i++) {
+                int v = set.getQuick(i);
+                if (inSet[v]) {
+                    inSet[v] = false;
+                    unfiredSet.add(v);
+                    odometer[v]--;
+                    data[v] += csr.degree[v];
+                    int end = csr.rowStart[v + 1];
+                    for (int k = csr.rowStart[v]; k < end; k++) {
+                        data[csr.dest[k]] -= csr.wt[k];
+                    }
+                }
+            }
+            
+            if (unfiredSet.isEmpty()) {
+                if (everywhere) {
+                    return;
+                }
+                everywhere = true;
+            } else {
+                everywhere = false;
+            }
+        }
+    }
+
+    /**
+     * Stabilizes data in place, adding the firings to odometer.
+     */
+    private void topple(int[] data, long[] odometer) throws InterruptedException {
+        int n = csr.numVertices;
+        int[] rowStart = csr.rowStart;
+        int[] dests = csr.dest;
+        int[] wts = csr.wt;
+        int[] degrees = csr.degree;
+        TIntArrayStack unstables = new TIntArrayStack();
+        boolean[] added = new boolean[n];
+        for (int v = 0; v < n; v++) {
+            if (degrees[v] > 0 && data[v] >= degrees[v]) {
+                added[v] = true;
+                unstables.push(v);
+            }
+        }
+        int fired = 0;
+        while (unstables.size() > 0) {
+            if ((++fired & 0xffff) == 0 && Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            int v = unstables.pop();
+            added[v] = false;
+            int degree = degrees[v];
+            int times = data[v] / degree;
+            data[v] -= degree * times;
+            odometer[v] += times;
+            int end = rowStart[v + 1];
+            for (int k = rowStart[v]; k < end; k++) {
+                int dest = dests[k];
+                data[dest] += wts[k] * times;
+                int destDegree = degrees[dest];
+                if (!added[dest] && destDegree > 0 && data[dest] >= destDegree) {
+                    added[dest] = true;
+                    unstables.push(dest);
+                }
+            }
+        }
+    }
+
+    private void fire(long[] sand, int v, long times) {
+        sand[v] -= csr.degree[v] * times;
+        int end = csr.rowStart[v + 1];
+        for (int k = csr.rowStart[v]; k < end; k++) {
+            sand[csr.dest[k]] += csr.wt[k] * times;
+        }
+    }
+
+    /**
+     * Sets q to L p, treating p as 0 outside of the active part of the region.
+     */
+    private void multiply(TIntArrayList region, int[] index, boolean[] active, double[] p, double[] q) {
+        int m = region.size();
+        for (int i = 0; i < m; i++) {
+            if (!active[i]) {
+                q[i] = 0.0;
+                continue;
+            }
+            int v = region.getQuick(i);
+            double sum = csr.degree[v] * p[i];
+            int end = csr.rowStart[v + 1];
+            for (int k = csr.rowStart[v]; k < end; k++) {
+                int j = index[csr.dest[k]];
+                if (j >= 0 && active[j]) {
+                    sum -= csr.wt[k] * p[j];
+                }
+            }
+            q[i] = sum;
+        }
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private boolean isSymmetric() {
+        int n = csr.numVertices;
+        for (int v = 0; v < n; v++) {
+            if (csr.degree[v] == 0) {
+                continue;
+            }
+            int end = csr.rowStart[v + 1];
+            for (int k = csr.rowStart[v]; k < end; k++) {
+                int w = csr.dest[k];
+                if (csr.degree[w] > 0 && weight(v, w) != weight(w, v)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private int weight(int v, int w) {
+        int sum = 0;
+        int end = csr.rowStart[v + 1];
+        for (int k = csr.rowStart[v]; k < end; k++) {
+            if (csr.dest[k] == w) {
+                sum += csr.wt[k];
+            }
+        }
+        return sum;
+    }
+}
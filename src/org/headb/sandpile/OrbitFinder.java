@@ -0,0 +1,257 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+/**
+ * Updates a configuration a generation at a time until it repeats, for graphs
+ * without a global sink (like tori) where stabilizing never ends. Since
+ * updating is deterministic, the configuration then cycles forever.
+ *
+ * Each configuration is hashed as the sum of the sand on each vertex times a
+ * random number for that vertex. Firing a vertex changes that sum by the same
+ * amount every time, so the hash is kept up to date at the cost of one
+ * addition per firing. When a hash comes up a second time, the cycle is
+ * checked by running it once more on a copy of the configuration, so a
+ * collision can't give a wrong period.
+ * @author Bryan Head
+ */
+public class OrbitFinder {
+
+    /**
+     * The cycle a configuration ends up in.
+     */
+    public static class Orbit {
+
+        private int transientLength;
+        private int period;
+        private SandpileConfiguration start;
+
+        Orbit(int transientLength, int period, SandpileConfiguration start) {
+            this.transientLength = transientLength;
+            this.period = period;
+            this.start = start;
+        }
+
+        /**
+         * Returns the number of generations before the cycle starts.
+         */
+        public int getTransientLength() {
+            return transientLength;
+        }
+
+        /**
+         * Returns the number of generations in the cycle. Stable
+         * configurations have a period of 1.
+         */
+        public int getPeriod() {
+            return period;
+        }
+
+        /**
+         * Returns the first configuration in the cycle.
+         */
+        public SandpileConfiguration getStart() {
+            return start;
+        }
+    }
+    private CompressedGraph csr;
+    private SandpileGraph.FiringMode mode;
+    // hashChange[v] is how much the hash changes when v fires once.
+    private long[] weight;
+    private long[] hashChange;
+    private boolean[] added;
+    private TIntArrayList current = new TIntArrayList();
+    private TIntArrayList next = new TIntArrayList();
+    private int[] timesToFire;
+
+    public OrbitFinder(SandpileGraph graph, SandpileGraph.FiringMode mode) {
+        this.csr = graph.getCompressedGraph();
+        this.mode = mode;
+        int n = csr.numVertices;
+        SplitMixRandom random = new SplitMixRandom(n);
+        weight = new long[n];
+        for (int v = 0; v < n; v++) {
+            weight[v] = random.nextLong();
+        }
+        hashChange = new long[n];
+        for (int v = 0; v < n; v++) {
+            long change = -csr.degree[v] * weight[v];
+            int end = csr.rowStart[v + 1];
+            for (int k = csr.rowStart[v]; k < end; k++) {
+                change += csr.wt[k] * weight[csr.dest[k]];
+            }
+            hashChange[v] = change;
+        }
+        added = new boolean[n];
+        timesToFire = new int[n];
+    }
+
+    /**
+     * Updates a copy of config until it repeats.
+     * @param config The configuration to start from. It isn't changed.
+     * @param maxGenerations The number of generations to give up after.
+     * @return The cycle config ends up in, or null if it doesn't repeat
+     * within maxGenerations.
+     */
+    public Orbit find(SandpileConfiguration config, int maxGenerations) throws InterruptedException {
+        int n = csr.numVertices;
+        int[] data = new SandpileConfiguration(config).getData();
+        long hash = 0;
+        for (int v = 0; v < n; v++) {
+            hash += data[v] * weight[v];
+        }
+        // The generation at which each hash was last seen.
+        TLongIntHashMap seen = new TLongIntHashMap();
+        start(data);
+        for (int generation = 0; generation <= maxGenerations; generation++) {
+            if (current.isEmpty()) {
+                // Stable configurations repeat every generation.
+                return orbit(config, generation, 1);
+            }
+            if (seen.containsKey(hash)) {
+                int period = generation - seen.get(hash);
+                if (repeatsAfter(data, period)) {
+                    return orbit(config, generation - period, period);
+                }
+            }
+            seen.put(hash, generation);
+            hash += step(data);
+        }
+        return null;
+    }
+
+    /**
+     * Builds the orbit by updating config for the given number of
+     * generations to find the start of the cycle.
+     */
+    private Orbit orbit(SandpileConfiguration config, int transientLength, int period) throws InterruptedException {
+        SandpileConfiguration start = new SandpileConfiguration(config);
+        int[] data = start.getData();
+        start(data);
+        for (int i = 0; i < transientLength; i++) {
+            step(data);
+        }
+        return new Orbit(transientLength, period, start);
+    }
+
+    /**
+     * Returns whether or not data comes back to itself after the given number
+     * of generations, without changing it.
+     */
+    private boolean repeatsAfter(int[] data, int period) throws InterruptedException {
+        int[] copy = data.clone();
+        TIntArrayList unstables = new TIntArrayList(current);
+        for (int i = 0; i < period; i++) {
+            step(copy);
+        }
+        boolean same = true;
+        for (int v = 0; v < copy.length && same; v++) {
+            same = copy[v] == data[v];
+        }
+        // Put the unstable vertices back the way they were.
+        clearQueue();
+        for (int i = 0; i < unstables.size(); i++) {
+            int v = unstables.getQuick(i);
+            added[v] = true;
+            current.add(v);
+        }
+        return same;
+    }
+
+    private void clearQueue() {
+        for (int i = 0; i < current.size(); i++) {
+            added[current.getQuick(i)] = false;
+        }
+        current.resetQuick();
+    }
+
+    /**
+     * Queues up the unstable vertices of data.
+     */
+    private void start(int[] data) {
+        clearQueue();
+        for (int v = 0; v < csr.numVertices; v++) {
+            if (csr.degree[v] > 0 && data[v] >= csr.degree[v]) {
+                added[v] = true;
+                current.add(v);
+            }
+        }
+    }
+
+    /**
+     * Fires every unstable vertex of data, the same way the updater returned
+     * by SandpileGraph.inPlaceParallelUpdater() does, and returns the change
+     * in the hash.
+     */
+    private long step(int[] data) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        int[] rowStart = csr.rowStart;
+        int[] dests = csr.dest;
+        int[] wts = csr.wt;
+        int[] degrees = csr.degree;
+        int size = current.size();
+        for (int i = 0; i < size; i++) {
+            int v = current.getQuick(i);
+            timesToFire[i] = mode == SandpileGraph.FiringMode.DIVIDE ? data[v] / degrees[v] : 1;
+        }
+        long change = 0;
+        for (int i = 0; i < size; i++) {
+            int v = current.getQuick(i);
+            int times = timesToFire[i];
+            added[v] = false;
+            change += times * hashChange[v];
+            int end = rowStart[v + 1];
+            for (int k = rowStart[v]; k < end; k++) {
+                int dest = dests[k];
+                data[dest] += wts[k] * times;
+                int degree = degrees[dest];
+                if (!added[dest] && degree > 0 && data[dest] >= degree) {
+                    added[dest] = true;
+                    next.add(dest);
+                }
+            }
+            int degree = degrees[v];
+            data[v] -= degree * times;
+            if (data[v] >= degree) {
+                added[v] = true;
+                next.add(v);
+            }
+        }
+        TIntArrayList swap = current;
+        current = next;
+        next = swap;
+        next.resetQuick();
+        return change;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A read-only copy of a SandpileConfiguration that takes as few bits per
+ * vertex as it can, for keeping configurations around. Stable configurations
+ * only have between 0 and degree - 1 grains on each non-sink, so a grid
+ * configuration only needs 2 bits per vertex. Each value is packed into the
+ * same number of bits, picked to make the whole thing as small as possible;
+ * the few values that don't fit, like the sand on sinks, are kept on the side.
+ * @author Bryan Head
+ */
+public class PackedSandpileConfiguration {
+
+    /**
+     * The first four bytes of a packed configuration written by write(). The
+     * first byte isn't ASCII, so this can't be the start of a text file.
+     */
+    public static final int MAGIC = 0x89534350;
+    private int size;
+    private int bits;
+    private long[] words;
+    // Values that don't fit in the bits, sorted by index. Their packed bits
+    // are 0.
+    private int[] exceptionIndices;
+    private int[] exceptionValues;
+
+    public PackedSandpileConfiguration(SandpileConfiguration config) {
+        size = config.size();
+        // counts[b] is the number of values that take exactly b bits.
+        // Negative values take all 32.
+        int[] counts = new int[33];
+        for (int i = 0; i < size; i++) {
+            int value = config.getQuick(i);
+            counts[value < 0 ? 32 : 32 - Integer.numberOfLeadingZeros(value)]++;
+        }
+        // Each value left over costs 64 bits on the side.
+        long bestCost = Long.MAX_VALUE;
+        int outside = size;
+        for (int b = 0; b <= 32; b++) {
+            outside -= counts[b];
+            long cost = (long) size * b + 64L * outside;
+            if (cost < bestCost) {
+                bestCost = cost;
+                bits = b;
+            }
+        }
+        words = new long[(int) (((long) size * bits + 63) / 64)];
+        int numExceptions = 0;
+        for (int i = 0; i < size; i++) {
+            if (!fits(config.getQuick(i))) {
+                numExceptions++;
+            }
+        }
+        exceptionIndices = new int[numExceptions];
+        exceptionValues = new int[numExceptions];
+        int e = 0;
+        for (int i = 0; i < size; i++) {
+            int value = config.getQuick(i);
+            if (fits(value)) {
+                pack(i, value);
+            } else {
+                exceptionIndices[e] = i;
+                exceptionValues[e] = value;
+                e++;
+            }
+        }
+    }
+
+    private PackedSandpileConfiguration() {
+    }
+
+    private boolean fits(int value) {
+        return bits == 32 || (value >= 0 && value >>> bits == 0);
+    }
+
+    private void pack(int i, int value) {
+        if (bits == 0) {
+            return;
+        }
+        long bitIndex = (long) i * bits;
+        int word = (int) (bitIndex >>> 6);
+        int shift = (int) (bitIndex & 63);
+        long v = value & 0xffffffffL;
+        words[word] |= v << shift;
+        if (shift + bits > 64) {
+            words[word + 1] |= v >>> (64 - shift);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of bits each value is packed into.
+     */
+    public int bitsPerValue() {
+        return bits;
+    }
+
+    public int get(int i) {
+        int e = Arrays.binarySearch(exceptionIndices, i);
+        if (e >= 0) {
+            return exceptionValues[e];
+        }
+        if (bits == 0) {
+            return 0;
+        }
+        long bitIndex = (long) i * bits;
+        int word = (int) (bitIndex >>> 6);
+        int shift = (int) (bitIndex & 63);
+        long v = words[word] >>> shift;
+        if (shift + bits > 64) {
+            v |= words[word + 1] << (64 - shift);
+        }
+        return (int) (v & ((1L << bits) - 1));
+    }
+
+    /**
+     * Returns a SandpileConfiguration with the same values.
+     */
+    public SandpileConfiguration unpack() {
+        SandpileConfiguration config = new SandpileConfiguration(size);
+        config.fill(0, size, 0);
+        if (bits > 0) {
+            int[] data = config.getData();
+            long mask = (1L << bits) - 1;
+            int word = 0;
+            int shift = 0;
+            for (int i = 0; i < size; i++) {
+                long v = words[word] >>> shift;
+                int next = shift + bits;
+                if (next > 64) {
+                    v |= words[word + 1] << (64 - shift);
+                }
+                data[i] = (int) (v & mask);
+                if (next >= 64) {
+                    word++;
+                    next -= 64;
+                }
+                shift = next;
+            }
+        }
+        for (int e = 0; e < exceptionIndices.length; e++) {
+            config.setQuick(exceptionIndices[e], exceptionValues[e]);
+        }
+        return config;
+    }
+
+    /**
+     * Returns the approximate number of bytes this takes up.
+     */
+    public long sizeInBytes() {
+        return 8L * words.length + 8L * exceptionIndices.length;
+    }
+
+    /**
+     * Writes this configuration, starting with MAGIC.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(size);
+        out.writeInt(bits);
+        for (int w = 0; w < words.length; w++) {
+            out.writeLong(words[w]);
+        }
+        out.writeInt(exceptionIndices.length);
+        for (int e = 0; e < exceptionIndices.length; e++) {
+            out.writeInt(exceptionIndices[e]);
+            out.writeInt(exceptionValues[e]);
+        }
+    }
+
+    /**
+     * Reads a configuration written by write().
+     * @throws IOException If the data doesn't start with MAGIC or ends early.
+     */
+    public static PackedSandpileConfiguration read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a packed sandpile configuration.");
+        }
+        PackedSandpileConfiguration packed = new PackedSandpileConfiguration();
+        packed.size = in.readInt();
+        packed.bits = in.readInt();
+        if (packed.size < 0 || packed.bits < 0 || packed.bits > 32) {
+            throw new IOException("Corrupt packed sandpile configuration.");
+        }
+        packed.words = new long[(int) (((long) packed.size * packed.bits + 63) / 64)];
+        for (int w = 0; w < packed.words.length; w++) {
+            packed.words[w] = in.readLong();
+        }
+        int numExceptions = in.readInt();
+        if (numExceptions < 0 || numExceptions > packed.size) {
+            throw new IOException("Corrupt packed sandpile configuration.");
+        }
+        packed.exceptionIndices = new int[numExceptions];
+        packed.exceptionValues = new int[numExceptions];
+        for (int e = 0; e < numExceptions; e++) {
+            packed.exceptionIndices[e] = in.readInt();
+            packed.exceptionValues[e] = in.readInt();
+        }
+        return packed;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Drops grains of sand on random vertices of a set, all at once. The grains
+ * are counted up per vertex first and then added to the config in one pass,
+ * and the vertices that got sand are returned so that an updater only needs
+ * to look at those.
+ * @author Bryan Head
+ */
+public class SandDropper {
+
+    private TIntArrayList vertices;
+    private AliasTable distribution;
+    private SplitMixRandom random;
+    // The number of grains each vertex has gotten so far in the current
+    // drop, by position in vertices.
+    private int[] counts;
+
+    /**
+     * Creates a dropper that picks each vertex equally often.
+     */
+    public SandDropper(TIntArrayList vertices, SplitMixRandom random) {
+        this(vertices, null, random);
+    }
+
+    /**
+     * Creates a dropper that picks vertices.get(i) with probability
+     * proportional to weights[i]. If weights is null, every vertex is equally
+     * likely.
+     */
+    public SandDropper(TIntArrayList vertices, double[] weights, SplitMixRandom random) {
+        if (weights != null && weights.length != vertices.size()) {
+            throw new IllegalArgumentException("There must be one weight per vertex.");
+        }
+        this.vertices = vertices;
+        this.distribution = weights == null ? null : new AliasTable(weights);
+        this.random = random;
+        this.counts = new int[vertices.size()];
+    }
+
+    /**
+     * Drops amount grains on config, or takes them away if amount is
+     * negative.
+     * @return The vertices whose sand changed, each listed once.
+     */
+    public TIntArrayList drop(SandpileConfiguration config, int amount) {
+        int sign = 1;
+        if (amount < 0) {
+            sign = -1;
+            amount = -amount;
+        }
+        TIntArrayList touched = new TIntArrayList();
+        int n = vertices.size();
+        if (n == 0) {
+            return touched;
+        }
+        for (int g = 0; g < amount; g++) {
+            int i = distribution == null ? random.nextInt(n) : distribution.sample(random);
+            if (counts[i] == 0) {
+                touched.add(i);
+            }
+            counts[i]++;
+        }
+        for (int t = 0; t < touched.size(); t++) {
+            int i = touched.getQuick(t);
+            int v = vertices.getQuick(i);
+            config.increaseQuick(v, sign * counts[i]);
+            counts[i] = 0;
+            touched.setQuick(t, v);
+        }
+        return touched;
+    }
+}
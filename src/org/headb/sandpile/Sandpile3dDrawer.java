@@ -530,10 +530,9 @@ public class Sandpile3dDrawer implements SandpileDrawer, GLEventListener {
 
         for (int v = 0; v < size; v++) {
             float avg = heights[v];
-            EdgeList outEdges = graph.getOutgoingEdges(v);
-            int numOutEdges = outEdges.size();
+            int numOutEdges = graph.numOutgoingEdges(v);
             for (int i = 0; i < numOutEdges; i++) {
-                avg += heights[outEdges.destQuick(i)] * outEdges.wtQuick(i);
+                avg += heights[graph.outgoingDestQuick(v, i)] * graph.outgoingWtQuick(v, i);
             }
             avg /= (float) (graph.degreeQuick(v) + 1);
             //avg*=1.5f;
@@ -559,11 +558,10 @@ public class Sandpile3dDrawer implements SandpileDrawer, GLEventListener {
             avg[0] = clrs[v][0];
             avg[1] = clrs[v][1];
             avg[2] = clrs[v][2];
-            EdgeList outEdges = graph.getOutgoingEdges(v);
-            int numOutEdges = outEdges.size();
+            int numOutEdges = graph.numOutgoingEdges(v);
             for (int i = 0; i < numOutEdges; i++) {
-                int vert = outEdges.destQuick(i);
-                int wt = outEdges.wtQuick(i);
+                int vert = graph.outgoingDestQuick(v, i);
+                int wt = graph.outgoingWtQuick(v, i);
                 avg[0] += clrs[vert][0] * wt;
                 avg[1] += clrs[vert][1] * wt;
                 avg[2] += clrs[vert][2] * wt;
@@ -38,4 +38,13 @@ public interface SandpileChangeListener {
     public void onGraphChange(SandpileGraph graph);
 
     public void onConfigChange(SandpileConfiguration config);
+
+    /**
+     * Called when an avalanche started by update() has finished. Avalanches
+     * in which nothing fired aren't reported. stats is a copy that the
+     * listener may keep. This is called from update() with the controller's
+     * config locked, so it shouldn't wait on another thread that uses the
+     * controller.
+     */
+    public void onAvalanche(AvalancheStats stats);
 }
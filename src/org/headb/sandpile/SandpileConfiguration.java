@@ -79,6 +79,15 @@ public class SandpileConfiguration extends TIntArrayList {
         this._data[v] += amount;
     }
 
+    /**
+     * Gives direct access to the array backing this configuration. The array
+     * may be longer than size(), and stops being used if the configuration
+     * grows, so only hold on to it while the size is fixed.
+     */
+    int[] getData() {
+        return this._data;
+    }
+
     public void setTo(SandpileConfiguration other) {
         this.resetQuick();
         this.ensureCapacity(other.size());
@@ -49,7 +49,11 @@ import java.net.*;
 
 import gnu.trove.list.array.TIntArrayList;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Contains all methods used to manipulate graphs and configurations independent
@@ -75,6 +79,25 @@ public class SandpileController implements ActionListener {
     private long lastRepaintTime = 0;
     private boolean repaintOnEveryUpdate = false;
     private boolean trackFirings = false;
+    private SandpileGraph.FiringMode firingMode = SandpileGraph.FiringMode.SINGLE;
+    private SandpileGraph.StabilizationStrategy stabilizationStrategy = SandpileGraph.StabilizationStrategy.TOPPLING;
+    private double[] stabilizationTimes = new double[0];
+    private double identityTime = 0.0;
+    private AvalancheStats avalancheStats = new AvalancheStats();
+    // The only vertices that might be unstable when the next updater is made,
+    // or null if any of them might be.
+    private TIntArrayList updaterStarters = null;
+    private SplitMixRandom random = new SplitMixRandom(System.nanoTime());
+    private OrbitFinder.Orbit orbit = null;
+    // The current config when it has too much sand for an int; currentConfig
+    // then holds as much as an int can.
+    private WideSandpileConfiguration wideConfig = null;
+    private Iterator<WideSandpileConfiguration> wideUpdater = null;
+    private int updateThreads = 1;
+    private ExecutorService updatePool = null;
+    // stabilize() holds the read lock while it uses updatePool, so that the
+    // pool isn't shut down under it. Always taken before configLock.
+    private final ReentrantReadWriteLock poolLock = new ReentrantReadWriteLock();
     private SandpileGraph sg;
     Float2dArrayList vertexData;
     TIntArrayList firings;
@@ -84,7 +107,12 @@ public class SandpileController implements ActionListener {
     private SandpileDrawer drawer;
     private File projectFile = null;
     private boolean saved = false;
-    private HashMap<String, SandpileConfiguration> configs;
+    // Stored configs are packed, since there can be many of them and they
+    // are only unpacked when used.
+    private HashMap<String, PackedSandpileConfiguration> configs;
+    // Stored configs with too much sand for an int also keep their real
+    // values here; configs holds them saturated.
+    private HashMap<String, WideSandpileConfiguration> wideConfigs;
     private Iterator<SandpileConfiguration> updater = null;
     public UndoManager undoManager = new UndoManager();
     private ArrayList<SandpileChangeListener> listeners = new ArrayList<SandpileChangeListener>();
@@ -100,6 +128,11 @@ public class SandpileController implements ActionListener {
     // to aquire the lock.
     private ReentrantLock configLock = new ReentrantLock(true);
     private ReentrantLock firingsLock = new ReentrantLock(true);
+    private SandpileMetrics metrics = new SandpileMetrics();
+    // While generating or loading a graph, edges are collected here and
+    // added to sg all at once.
+    private SandpileGraph.Builder builder = null;
+    private int buildDepth = 0;
 
     public Runnable updateRunner = new Runnable () {
         public void run() {
@@ -135,12 +168,13 @@ public class SandpileController implements ActionListener {
         //private SandpileGraph oldSG = new SandpileGraph(sg);
 
         private Float2dArrayList oldLocations = new Float2dArrayList(vertexData);
-        private SandpileConfiguration oldCurConfig = new SandpileConfiguration(currentConfig);
+        private PackedSandpileConfiguration oldCurConfig = new PackedSandpileConfiguration(currentConfig);
+        private WideSandpileConfiguration oldWideConfig = wideConfig == null ? null : new WideSandpileConfiguration(wideConfig);
         //private HashMap<String, SandpileConfiguration> oldConfigs = new HashMap<String, SandpileConfiguration>(configs);
         //private TIntArrayList oldSelected = new TIntArrayList(selectedVertices.toArray());
         //private SandpileGraph newSG;
         private Float2dArrayList newLocations;
-        private SandpileConfiguration newCurConfig;
+        private PackedSandpileConfiguration newCurConfig;
         //private HashMap<String, SandpileConfiguration> newConfigs;
         //private TIntArrayList newSelected;
         private String presentationName;
@@ -159,14 +193,15 @@ public class SandpileController implements ActionListener {
             //System.err.println("undo " + getPresentationName());
             //newSG = new SandpileGraph(sg);
             newLocations = new Float2dArrayList(vertexData);
-            newCurConfig = new SandpileConfiguration(currentConfig);
+            newCurConfig = new PackedSandpileConfiguration(currentConfig);
 //			newConfigs = new HashMap<String, SandpileConfiguration>(configs);
 //			newSelected = new TIntArrayList(selectedVertices.toArray());
 
             undoAction();
             //sg = new SandpileGraph(oldSG);
             vertexData = new Float2dArrayList(oldLocations);
-            currentConfig = new SandpileConfiguration(oldCurConfig);
+            currentConfig = oldCurConfig.unpack();
+            wideConfig = oldWideConfig;
 //			configs = new HashMap<String, SandpileConfiguration>(oldConfigs);
 //			selectedVertices = new TIntArrayList(oldSelected.toArray());
             onGraphChange();
@@ -234,7 +269,9 @@ public class SandpileController implements ActionListener {
         firings = new TIntArrayList();
         currentConfig = new SandpileConfiguration();
         selectedVertices = new TIntArrayList();
-        configs = new HashMap<String, SandpileConfiguration>();
+        configs = new HashMap<String, PackedSandpileConfiguration>();
+        wideConfigs = new HashMap<String, WideSandpileConfiguration>();
+        metrics.register();
 
         //JPanel canvas = drawer.getCanvas();
         selectedVertices.clear();
@@ -421,20 +458,131 @@ public class SandpileController implements ActionListener {
      * update cycles will be performed.
      */
     public void update() {
+        long start = System.nanoTime();
         if (getTrackFirings()) {
             updateFirings();
         }
-        configLock.lock();
+        lockConfig();
         try {
+            if (wideConfig != null) {
+                updateWide();
+                return;
+            }
             if (updater == null) {
-                updater = sg.inPlaceParallelUpdater(currentConfig);
+                // Anything that changes the config resets the updater, so each
+                // updater runs exactly one avalanche.
+                avalancheStats = new AvalancheStats();
+                TIntArrayList starters = updaterStarters;
+                if (starters == null) {
+                    starters = sg.getUnstables(currentConfig);
+                }
+                updaterStarters = null;
+                if (updateThreads > 1) {
+                    updater = sg.concurrentUpdaterStartingWith(currentConfig, starters, firingMode, updatePool, updateThreads, avalancheStats);
+                } else {
+                    updater = sg.inPlaceParallelUpdaterStartingWith(currentConfig, starters, firingMode, avalancheStats);
+                }
             }
             if (updater.hasNext()) {
+                long topplings = avalancheStats.getTopplings();
+                long lost = avalancheStats.getGrainsLost();
                 updater.next();
+                metrics.recordGeneration(avalancheStats.getTopplings() - topplings, avalancheStats.getLastGenerationSize(), avalancheStats.getGrainsLost() - lost);
                 onConfigChange();
+                if (!updater.hasNext()) {
+                    onAvalanche();
+                }
             }
         } finally {
             configLock.unlock();
+            metrics.recordUpdate(System.nanoTime() - start);
+        }
+    }
+
+    // The locks are always taken through these so that the time spent
+    // waiting on them shows up in the metrics.
+    private void lockConfig() {
+        long start = System.nanoTime();
+        configLock.lock();
+        metrics.recordConfigLockWait(System.nanoTime() - start);
+    }
+
+    private void lockFirings() {
+        long start = System.nanoTime();
+        firingsLock.lock();
+        metrics.recordFiringsLockWait(System.nanoTime() - start);
+    }
+
+    /**
+     * Until the matching finishBuilding(), new vertices and edges are
+     * collected and added to the graph in one pass. The config lock is held
+     * the whole time since the graph lags behind the config until then.
+     */
+    private void startBuilding() {
+        lockConfig();
+        if (buildDepth == 0) {
+            builder = new SandpileGraph.Builder(sg);
+        }
+        buildDepth++;
+    }
+
+    private void finishBuilding() {
+        try {
+            buildDepth--;
+            if (buildDepth == 0) {
+                try {
+                    builder.build();
+                } finally {
+                    builder = null;
+                }
+                clearEdgeDependentConfigs();
+            }
+        } finally {
+            configLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the metrics kept on updating, which are also registered with
+     * JMX.
+     */
+    public SandpileMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Stops the update threads and takes the metrics off JMX. Call this when
+     * the controller won't be used anymore; if it is anyway, updates happen
+     * on the calling thread. Waits for a stabilize() using the update threads
+     * to finish.
+     */
+    public void shutdown() {
+        poolLock.writeLock().lock();
+        try {
+            lockConfig();
+            try {
+                if (updatePool != null) {
+                    updatePool.shutdown();
+                    updatePool = null;
+                }
+                updateThreads = 1;
+                updater = null;
+            } finally {
+                configLock.unlock();
+            }
+        } finally {
+            poolLock.writeLock().unlock();
+        }
+        metrics.unregister();
+    }
+
+    private void updateWide() {
+        if (wideUpdater == null) {
+            wideUpdater = sg.wideUpdater(wideConfig, firingMode, currentConfig);
+        }
+        if (wideUpdater.hasNext()) {
+            wideUpdater.next();
+            onConfigChange();
         }
     }
 
@@ -442,7 +590,7 @@ public class SandpileController implements ActionListener {
      * Resets all firing counts to 0.
      */
     public void resetFirings() {
-        firingsLock.lock();
+        lockFirings();
         try {
             firings = new TIntArrayList();
             int size = configSize();
@@ -462,7 +610,7 @@ public class SandpileController implements ActionListener {
         if (firings.size() != s) {
             resetFirings();
         }
-        firingsLock.lock();
+        lockFirings();
         try {
             for (int vert = 0; vert < s; vert++) {
                 int d = sg.degreeQuick(vert);
@@ -525,6 +673,27 @@ public class SandpileController implements ActionListener {
         needsRepaint = true;
     }
 
+    /**
+     * Indicates that the avalanche update() was running has finished.
+     */
+    public void onAvalanche() {
+        // Listeners get their own copy, since avalancheStats is filled in by
+        // the updater.
+        AvalancheStats stats = new AvalancheStats(avalancheStats);
+        for (SandpileChangeListener listener : listeners) {
+            listener.onAvalanche(stats);
+        }
+    }
+
+    /**
+     * Returns a copy of the statistics of the avalanche update() is running,
+     * or of the last one if it has finished. Changing the config starts a new
+     * one.
+     */
+    public AvalancheStats getAvalancheStats() {
+        return new AvalancheStats(avalancheStats);
+    }
+
     /**
      * Removes any stored configs that depend on the edges of the graph. This
      * includes the identity and minimum burning configs by default.
@@ -532,6 +701,8 @@ public class SandpileController implements ActionListener {
     public void clearEdgeDependentConfigs() {
         configs.remove("Identity");
         configs.remove("Burning");
+        wideConfigs.remove("Identity");
+        wideConfigs.remove("Burning");
     }
 
     /**
@@ -540,6 +711,7 @@ public class SandpileController implements ActionListener {
      */
     public void clearVertexDependentConfigs() {
         configs.clear();
+        wideConfigs.clear();
     }
 
     /**
@@ -549,6 +721,8 @@ public class SandpileController implements ActionListener {
     public void onEdit() {
         saved = false;
         updater = null;
+        updaterStarters = null;
+        wideUpdater = null;
     }
 
     /**
@@ -558,10 +732,11 @@ public class SandpileController implements ActionListener {
      * config is a different size than the current config.
      */
     public void setConfig(SandpileConfiguration config) {
-        configLock.lock();
+        lockConfig();
         try {
             if (config.size() == configSize()) {
                 currentConfig = config;
+                wideConfig = null;
                 onConfigEdit();
             } else {
                 throw new IndexOutOfBoundsException("Tried to set the current sandpile " +
@@ -574,6 +749,67 @@ public class SandpileController implements ActionListener {
         }
     }
 
+    /**
+     * Sets the current config to the given config, which may have more sand
+     * on a vertex than an int can hold. If it does, the controller keeps the
+     * wide config and works with that: update(), stabilize(), saving and
+     * getWideConfig() all use the real amounts, while getConfig() and the
+     * drawer see as much as an int can hold. Adding sand to the config or
+     * storing it keeps the real amounts; setting it to a plain config goes
+     * back to ints.
+     * @throws IndexOutOfBoundsException Throws this exception if the given
+     * config is a different size than the current config.
+     */
+    public void setWideConfig(WideSandpileConfiguration config) {
+        lockConfig();
+        try {
+            if (config.size() != configSize()) {
+                throw new IndexOutOfBoundsException("Tried to set the current sandpile " +
+                        "configuration to a configuration of an incorrect size. The correct" +
+                        " size is " + configSize() + " while the new configuration had size" +
+                        config.size() + ".");
+            }
+            currentConfig = config.toSaturated();
+            wideConfig = config.fitsInInt() ? null : config;
+            onEdit();
+            onConfigChange();
+        } finally {
+            configLock.unlock();
+        }
+    }
+
+    /**
+     * Adds the given config to the current config, going to a wide config if
+     * needed. See setWideConfig().
+     */
+    public void addWideConfig(WideSandpileConfiguration config) {
+        lockConfig();
+        try {
+            setWideConfig(getWideConfig().plus(config));
+        } finally {
+            configLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the current config with the real amount of sand on every
+     * vertex, even if it doesn't fit in an int.
+     */
+    public WideSandpileConfiguration getWideConfig() {
+        if (wideConfig != null) {
+            return wideConfig;
+        }
+        return new WideSandpileConfiguration(currentConfig);
+    }
+
+    /**
+     * Returns whether or not the current config has more sand on a vertex
+     * than an int can hold.
+     */
+    public boolean isConfigWide() {
+        return wideConfig != null;
+    }
+
     /**
      * Sets the current config to the given config plus the current config.
      * @param config The config to add to the current config.
@@ -581,9 +817,13 @@ public class SandpileController implements ActionListener {
      * config is a different size than the current config.
      */
     public void addConfig(SandpileConfiguration config) {
-        configLock.lock();
+        lockConfig();
         try {
             if (config.size() == configSize()) {
+                if (wideConfig != null) {
+                    setWideConfig(wideConfig.plus(config));
+                    return;
+                }
                 currentConfig.plusEquals(config);
                 onConfigEdit();
             } else {
@@ -891,6 +1131,15 @@ public class SandpileController implements ActionListener {
     }
 
     public void makeGrid(int rows, int cols, float x, float y, int nBorder, int sBorder, int eBorder, int wBorder) {
+        startBuilding();
+        try {
+            addGrid(rows, cols, x, y, nBorder, sBorder, eBorder, wBorder);
+        } finally {
+            finishBuilding();
+        }
+    }
+
+    private void addGrid(int rows, int cols, float x, float y, int nBorder, int sBorder, int eBorder, int wBorder) {
         float gridSpacing = VERT_RADIUS * 2;
         //int curVertDataSize = vertexData.size();
         int[][] gridRef = new int[rows][cols];
@@ -1016,7 +1265,7 @@ public class SandpileController implements ActionListener {
                 } else {
                     edges.add(gridRef[i][j - 1], 1);
                 }
-                getGraph().setOutgoingEdges(edges);
+                setOutgoingEdges(edges);
             }
         }
     }
@@ -1051,6 +1300,15 @@ public class SandpileController implements ActionListener {
     }
 
     public void makeHoneycomb(final int radius, final float x, final float y, final int borders) {
+        startBuilding();
+        try {
+            addHoneycomb(radius, x, y, borders);
+        } finally {
+            finishBuilding();
+        }
+    }
+
+    private void addHoneycomb(final int radius, final float x, final float y, final int borders) {
         float gridSpacing = VERT_RADIUS * 2;
         int curRowLength = radius;
         int[][] gridRef = new int[radius * 2 - 1][radius * 2 - 1];
@@ -1093,7 +1351,7 @@ public class SandpileController implements ActionListener {
                     edges.add(gridRef[i + 1][j - 1], 1);
                     edges.add(gridRef[i + 1][j], 1);
                 }
-                getGraph().setOutgoingEdges(edges);
+                setOutgoingEdges(edges);
 
             }
             if (i < radius - 1) {
@@ -1180,6 +1438,17 @@ public class SandpileController implements ActionListener {
     public void makeHexGrid(final int rows, final int cols,
             final float x, final float y,
             final int nBorder, final int sBorder, final int eBorder, final int wBorder) {
+        startBuilding();
+        try {
+            addHexGrid(rows, cols, x, y, nBorder, sBorder, eBorder, wBorder);
+        } finally {
+            finishBuilding();
+        }
+    }
+
+    private void addHexGrid(final int rows, final int cols,
+            final float x, final float y,
+            final int nBorder, final int sBorder, final int eBorder, final int wBorder) {
         float gridSpacing = VERT_RADIUS * 2;
         //int curVertDataSize = vertexData.size();
 
@@ -1373,6 +1642,18 @@ public class SandpileController implements ActionListener {
             final int spacing, final List<int[]> vectors,
             final TIntArrayList xStartingWith, final TIntArrayList xFreq, final TIntArrayList yStartingWith, final TIntArrayList yFreq,
             final List<Boolean> directed, final TIntArrayList weight, final TIntArrayList borders) {
+        startBuilding();
+        try {
+            addLattice(xCoord, yCoord, rows, cols, spacing, vectors, xStartingWith, xFreq, yStartingWith, yFreq, directed, weight, borders);
+        } finally {
+            finishBuilding();
+        }
+    }
+
+    private void addLattice(final float xCoord, final float yCoord, final int rows, final int cols,
+            final int spacing, final List<int[]> vectors,
+            final TIntArrayList xStartingWith, final TIntArrayList xFreq, final TIntArrayList yStartingWith, final TIntArrayList yFreq,
+            final List<Boolean> directed, final TIntArrayList weight, final TIntArrayList borders) {
         float gridSpacing = VERT_RADIUS * (spacing) * 2f;
         int[][] gridRef = new int[cols][rows];
 
@@ -1466,9 +1747,54 @@ public class SandpileController implements ActionListener {
 
     public SandpileConfiguration getIdentity() throws InterruptedException {
         if (!configs.containsKey("Identity")) {
-            configs.put("Identity", sg.getIdentityConfig());
+            long start = System.nanoTime();
+            wideConfigs.remove("Identity");
+            configs.put("Identity", new PackedSandpileConfiguration(sg.getIdentityConfig(getFastStrategy())));
+            identityTime = (System.nanoTime() - start) / 1e6;
         }
-        return configs.get("Identity");
+        return configs.get("Identity").unpack();
+    }
+
+    /**
+     * Returns the number of milliseconds it took to calculate the identity
+     * the last time it wasn't already known.
+     */
+    public double getIdentityTime() {
+        return identityTime;
+    }
+
+    /**
+     * Returns whether or not the current configuration is recurrent.
+     */
+    public boolean isRecurrent() throws InterruptedException {
+        return sg.isRecurrent(currentConfig);
+    }
+
+    /**
+     * Calculates the identity both by stabilizing twice the max config and by
+     * repeatedly adding the burning config, and returns the number of
+     * milliseconds each took, in that order.
+     */
+    public double[] timeIdentityMethods() throws InterruptedException {
+        long start = System.nanoTime();
+        SandpileConfiguration identity = sg.getIdentityConfig(getFastStrategy());
+        long middle = System.nanoTime();
+        sg.getIdentityConfig();
+        long end = System.nanoTime();
+        wideConfigs.remove("Identity");
+        configs.put("Identity", new PackedSandpileConfiguration(identity));
+        identityTime = (middle - start) / 1e6;
+        return new double[]{identityTime, (end - middle) / 1e6};
+    }
+
+    // Plain toppling is by far the slowest way to stabilize big piles of
+    // sand, like twice the max config or wide configs, so those use least
+    // action unless something else was picked.
+    private SandpileGraph.StabilizationStrategy getFastStrategy() {
+        if (stabilizationStrategy == SandpileGraph.StabilizationStrategy.TOPPLING) {
+            return SandpileGraph.StabilizationStrategy.LEAST_ACTION;
+        }
+        return stabilizationStrategy;
     }
 
     public void addIdentity(int times) throws InterruptedException {
@@ -1493,9 +1819,10 @@ public class SandpileController implements ActionListener {
 
     public SandpileConfiguration getBurningConfig() throws InterruptedException {
         if (!configs.containsKey("Burning")) {
-            configs.put("Burning", sg.getMinimalBurningConfig());
+            wideConfigs.remove("Burning");
+            configs.put("Burning", new PackedSandpileConfiguration(sg.getMinimalBurningConfig()));
         }
-        return configs.get("Burning");
+        return configs.get("Burning").unpack();
     }
 
     public void setToBurningConfig(int times) throws InterruptedException {
@@ -1540,24 +1867,45 @@ public class SandpileController implements ActionListener {
     }
 
     public void setToCurrentConfig(int times) {
-        setConfig(currentConfig.times(times));
+        setWideConfig(getWideConfig().times(times));
         repaint();
     }
 
     public void addCurrentConfig(int times) {
-        addConfig(currentConfig.times(times));
+        addWideConfig(getWideConfig().times(times));
         repaint();
     }
 
     public SandpileConfiguration getConfigByName(String name) {
-        return configs.get(name);
+        PackedSandpileConfiguration config = configs.get(name);
+        return config == null ? null : config.unpack();
+    }
+
+    /**
+     * Returns the stored config with the given name with the real amount of
+     * sand on every vertex, or null if there isn't one.
+     */
+    public WideSandpileConfiguration getWideConfigByName(String name) {
+        WideSandpileConfiguration wide = wideConfigs.get(name);
+        if (wide != null) {
+            return new WideSandpileConfiguration(wide);
+        }
+        SandpileConfiguration config = getConfigByName(name);
+        return config == null ? null : new WideSandpileConfiguration(config);
     }
 
     public SandpileConfiguration removeConfigNamed(String name) {
-        return configs.remove(name);
+        wideConfigs.remove(name);
+        PackedSandpileConfiguration config = configs.remove(name);
+        return config == null ? null : config.unpack();
     }
 
     public void addConfigNamed(String name, int times) {
+        if (wideConfigs.containsKey(name)) {
+            addWideConfig(getWideConfigByName(name).times(times));
+            repaint();
+            return;
+        }
         SandpileConfiguration config = getConfigByName(name);
         if (config == null) {
             return;
@@ -1567,6 +1915,11 @@ public class SandpileController implements ActionListener {
     }
 
     public void setConfigNamed(String name, int times) {
+        if (wideConfigs.containsKey(name)) {
+            setWideConfig(getWideConfigByName(name).times(times));
+            repaint();
+            return;
+        }
         SandpileConfiguration config = getConfigByName(name);
         if (config == null) {
             return;
@@ -1577,7 +1930,7 @@ public class SandpileController implements ActionListener {
     }
 
     public void clearSand() {
-        configLock.lock();
+        lockConfig();
         try {
             setConfig(sg.getUniformConfig(0));
         } finally {
@@ -1587,7 +1940,120 @@ public class SandpileController implements ActionListener {
     }
 
     public void stabilize() throws InterruptedException {
-        setConfig(sg.stabilizeConfig(currentConfig));
+        long start = System.nanoTime();
+        if (wideConfig != null) {
+            setWideConfig(sg.stabilizeConfig(wideConfig, getFastStrategy()));
+            stabilizationTimes = new double[]{(System.nanoTime() - start) / 1e6};
+            metrics.recordStabilization(System.nanoTime() - start);
+            return;
+        }
+        if (stabilizationStrategy == SandpileGraph.StabilizationStrategy.MULTISCALE) {
+            MultiscaleStabilizer stabilizer = new MultiscaleStabilizer(sg);
+            setConfig(stabilizer.stabilize(currentConfig));
+            stabilizationTimes = stabilizer.getLevelTimes();
+            metrics.recordStabilization(System.nanoTime() - start);
+            return;
+        }
+        if (stabilizationStrategy != SandpileGraph.StabilizationStrategy.TOPPLING) {
+            setConfig(sg.stabilizeConfig(currentConfig, stabilizationStrategy));
+        } else {
+            poolLock.readLock().lock();
+            try {
+                if (updateThreads > 1) {
+                    setConfig(sg.stabilizeConfig(currentConfig, firingMode, updatePool, updateThreads));
+                } else {
+                    setConfig(sg.stabilizeConfig(currentConfig, firingMode));
+                }
+            } finally {
+                poolLock.readLock().unlock();
+            }
+        }
+        stabilizationTimes = new double[]{(System.nanoTime() - start) / 1e6};
+        metrics.recordStabilization(System.nanoTime() - start);
+    }
+
+    /**
+     * Stabilizes the current config by toppling, saving its progress to
+     * checkpoint every intervalMillis milliseconds and when interrupted, so
+     * that resume() can finish it if this doesn't get the chance. Wide configs
+     * are stabilized as usual, without checkpoints.
+     */
+    public void stabilize(File checkpoint, long intervalMillis) throws InterruptedException, IOException {
+        if (wideConfig != null) {
+            stabilize();
+            return;
+        }
+        long start = System.nanoTime();
+        setConfig(sg.stabilizeConfig(currentConfig, new StabilizationCheckpoint(checkpoint, intervalMillis)));
+        stabilizationTimes = new double[]{(System.nanoTime() - start) / 1e6};
+        metrics.recordStabilization(System.nanoTime() - start);
+    }
+
+    /**
+     * Sets the current config to the identity, like setToIdentity(1), but if
+     * it isn't already known it is calculated with checkpoints as in
+     * stabilize(File, long).
+     */
+    public void setToIdentity(File checkpoint, long intervalMillis) throws InterruptedException, IOException {
+        if (!configs.containsKey("Identity")) {
+            long start = System.nanoTime();
+            wideConfigs.remove("Identity");
+            configs.put("Identity", new PackedSandpileConfiguration(sg.getIdentityConfig(new StabilizationCheckpoint(checkpoint, intervalMillis))));
+            identityTime = (System.nanoTime() - start) / 1e6;
+        }
+        setToIdentity(1);
+    }
+
+    /**
+     * Sets the current config to the burning config, like
+     * setToBurningConfig(1), but if it isn't already known it is calculated
+     * with checkpoints as in stabilize(File, long).
+     */
+    public void setToBurningConfig(File checkpoint, long intervalMillis) throws InterruptedException, IOException {
+        if (!configs.containsKey("Burning")) {
+            wideConfigs.remove("Burning");
+            configs.put("Burning", new PackedSandpileConfiguration(sg.getMinimalBurningConfig(new StabilizationCheckpoint(checkpoint, intervalMillis))));
+        }
+        setToBurningConfig(1);
+    }
+
+    /**
+     * Finishes the calculation that stabilize(File, long),
+     * setToIdentity(File, long) or setToBurningConfig(File, long) saved to
+     * checkpoint, still saving its progress every intervalMillis milliseconds,
+     * and sets the current config to the result.
+     */
+    public void resume(File checkpoint, long intervalMillis) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        StabilizationCheckpoint saved = new StabilizationCheckpoint(checkpoint, intervalMillis);
+        SandpileConfiguration result = sg.resume(saved);
+        switch (saved.getStage()) {
+            case IDENTITY_DOUBLE_MAX:
+            case IDENTITY:
+                wideConfigs.remove("Identity");
+                configs.put("Identity", new PackedSandpileConfiguration(result));
+                break;
+            case BURNING:
+                wideConfigs.remove("Burning");
+                configs.put("Burning", new PackedSandpileConfiguration(result));
+                break;
+            default:
+                break;
+        }
+        setConfig(result);
+        if (saved.getStage() == StabilizationCheckpoint.Stage.STABILIZE) {
+            metrics.recordStabilization(System.nanoTime() - start);
+        }
+        repaint();
+    }
+
+    /**
+     * Returns the number of milliseconds the last call to stabilize() took.
+     * With the MULTISCALE strategy, there is one entry per level, starting
+     * with the finest; otherwise there is just one.
+     */
+    public double[] getStabilizationTimes() {
+        return stabilizationTimes;
     }
 
     public final SandpileGraph getGraph() {
@@ -1599,12 +2065,19 @@ public class SandpileController implements ActionListener {
     }
 
     public int addVertex(float x, float y) {
-        configLock.lock();
-        firingsLock.lock();
+        lockConfig();
+        lockFirings();
         try {
-            sg.addVertex();
+            if (builder != null) {
+                builder.addVertex();
+            } else {
+                sg.addVertex();
+            }
             vertexData.addRow(x, y);
             currentConfig.add(0);
+            if (wideConfig != null) {
+                wideConfig.add(0);
+            }
             firings.add(0);
         } finally {
             firingsLock.unlock();
@@ -1666,28 +2139,45 @@ public class SandpileController implements ActionListener {
     }
 
     protected void delVertices(TIntArrayList vertices) {
-        configLock.lock();
+        lockConfig();
+        lockFirings();
         try {
             boolean[] toRemove = new boolean[configSize()];
+            int numKept = configSize();
             for (int i = 0; i < vertices.size(); i++) {
                 int v = vertices.get(i);
-                toRemove[v] = true;
+                if (!toRemove[v]) {
+                    toRemove[v] = true;
+                    numKept--;
+                }
             }
-            SandpileConfiguration newConfig = new SandpileConfiguration(currentConfig.size()-vertices.size());
-            Float2dArrayList newVertexData = new Float2dArrayList(vertexData.rows()-vertices.size(), 2);
-            for (int v=0, w=0; v<currentConfig.size(); v++) {
+            // The current config may belong to whoever passed it to
+            // setConfig(), and the vertex data to an undo edit, so what's kept
+            // goes into new lists rather than being shifted down in place.
+            Float2dArrayList newVertexData = new Float2dArrayList(numKept, 2);
+            SandpileConfiguration newConfig = new SandpileConfiguration(numKept);
+            TIntArrayList newFirings = new TIntArrayList(numKept);
+            WideSandpileConfiguration newWideConfig = wideConfig == null ? null : new WideSandpileConfiguration(numKept);
+            for (int v = 0, w = 0; v < currentConfig.size(); v++) {
                 if (!toRemove[v]) {
-                    newVertexData.setRow(w, vertexData.get(v,0), vertexData.get(v,1));
-                    newConfig.add(currentConfig.get(v));
+                    newVertexData.setRow(w, vertexData.getQuick(v, 0), vertexData.getQuick(v, 1));
+                    newConfig.add(currentConfig.getQuick(v));
+                    newFirings.add(firings.getQuick(v));
+                    if (newWideConfig != null) {
+                        newWideConfig.add(wideConfig.getQuick(v));
+                    }
                     w++;
                 }
             }
             vertexData = newVertexData;
             currentConfig = newConfig;
+            firings = newFirings;
+            wideConfig = newWideConfig;
             this.unselectVertices();
             sg.removeVertices(vertices);
             configs.clear();
         } finally {
+            firingsLock.unlock();
             configLock.unlock();
         }
     }
@@ -1724,13 +2214,15 @@ public class SandpileController implements ActionListener {
     }
 
     protected void delAllVertices() {
-        configLock.lock();
-        firingsLock.lock();
+        lockConfig();
+        lockFirings();
         try {
             vertexData.clear();
             currentConfig.clear();
+            wideConfig = null;
             firings.clear();
             configs.clear();
+            wideConfigs.clear();
             sg.removeAllVertices();
             selectedVertices.clear();
         } finally {
@@ -1744,10 +2236,29 @@ public class SandpileController implements ActionListener {
     }
 
     protected void addEdge(int originVert, int destVert, int weight) {
+        if (builder != null) {
+            if (originVert != destVert) {
+                builder.addEdge(originVert, destVert, weight);
+            }
+            return;
+        }
         sg.addEdge(originVert, destVert, weight);
         clearEdgeDependentConfigs();
     }
 
+    /**
+     * Sets the outgoing edges of a vertex that doesn't have any yet.
+     */
+    private void setOutgoingEdges(SingleSourceEdgeList edges) {
+        if (builder != null) {
+            for (int i = 0; i < edges.size(); i++) {
+                builder.addEdge(edges.sourceQuick(i), edges.destQuick(i), edges.wtQuick(i));
+            }
+        } else {
+            sg.setOutgoingEdges(edges);
+        }
+    }
+
     protected void delEdge(int originVert, int destVert) {
         this.delEdge(originVert, destVert, 1);
     }
@@ -1758,28 +2269,115 @@ public class SandpileController implements ActionListener {
     }
 
     public void addSand(int vert, int amount) {
+        if (wideConfig != null) {
+            wideConfig.set(vert, wideConfig.get(vert) + amount);
+            currentConfig.set(vert, WideSandpileConfiguration.saturate(wideConfig.get(vert)));
+            onConfigEdit();
+            return;
+        }
         setSand(vert, currentConfig.get(vert) + amount);
-        onConfigEdit();
     }
 
+    /**
+     * Adds amount grains to random vertices in the given list, each equally
+     * likely. A negative amount takes grains away.
+     */
     public void addSandToRandom(TIntArrayList vertices, int amount) {
-        int sign = 1;
-        if (amount < 0) {
-            sign = -1;
-            amount = -amount;
-        }
+        addSandToRandom(vertices, null, amount);
+    }
 
+    /**
+     * Adds amount grains to random vertices in the given list, picking
+     * vertices.get(i) with probability proportional to weights[i]. If weights
+     * is null, every vertex is equally likely. A negative amount takes grains
+     * away. All the grains go on at once, with a single change event, and if
+     * the config was stable, the next update only looks at the vertices that
+     * got sand.
+     */
+    public void addSandToRandom(TIntArrayList vertices, double[] weights, int amount) {
         if (vertices.isEmpty()) {
             return;
         }
-        for (int i = 0; i < amount; i++) {
-            int v = (int) (Math.random() * vertices.size());
-            addSand(vertices.get(v), sign);
+        SandDropper dropper = new SandDropper(vertices, weights, random);
+        lockConfig();
+        try {
+            boolean wasStable = updater != null && !updater.hasNext();
+            TIntArrayList touched;
+            if (wideConfig != null) {
+                // Drop on an empty config and add what landed to the real
+                // amounts.
+                SandpileConfiguration dropped = sg.getUniformConfig(0);
+                touched = dropper.drop(dropped, amount);
+                for (int i = 0; i < touched.size(); i++) {
+                    int v = touched.getQuick(i);
+                    wideConfig.increaseQuick(v, dropped.getQuick(v));
+                    currentConfig.setQuick(v, WideSandpileConfiguration.saturate(wideConfig.getQuick(v)));
+                }
+            } else {
+                touched = dropper.drop(currentConfig, amount);
+            }
+            onConfigEdit();
+            if (wasStable) {
+                updaterStarters = touched;
+            }
+        } finally {
+            configLock.unlock();
+        }
+    }
+
+    /**
+     * Drops grains one at a time on random non-sinks, letting each avalanche
+     * finish before the next grain, and writes a record of every avalanche
+     * to log. See SlowDriver. Nothing is repainted and listeners only hear
+     * about the change once, at the end.
+     */
+    public void slowDrive(int grains, File log, SlowDriver.LogFormat format) throws IOException, InterruptedException {
+        if (wideConfig != null) {
+            throw new IllegalStateException("Can't slow drive a config with more sand on a vertex than an int can hold.");
+        }
+        OutputStream stream = new FileOutputStream(log);
+        lockConfig();
+        try {
+            new SlowDriver(sg, currentConfig, sg.getNonSinks(), random).run(grains, stream, format);
+        } finally {
+            configLock.unlock();
+            stream.close();
+            onConfigEdit();
         }
     }
 
+    /**
+     * Finds the cycle the current config ends up in when updated with the
+     * current firing mode, without changing it. Useful when the graph has no
+     * global sink. The result is also kept for getOrbit().
+     * @return The cycle, or null if the config doesn't repeat within
+     * maxGenerations.
+     */
+    public OrbitFinder.Orbit findOrbit(int maxGenerations) throws InterruptedException {
+        orbit = sg.findOrbit(currentConfig, firingMode, maxGenerations);
+        return orbit;
+    }
+
+    /**
+     * Returns the cycle found by the last call to findOrbit(), or null.
+     */
+    public OrbitFinder.Orbit getOrbit() {
+        return orbit;
+    }
+
+    /**
+     * Restarts the random numbers used to drop sand on random vertices, so
+     * the same drops can be repeated.
+     */
+    public void setRandomSeed(long seed) {
+        random = new SplitMixRandom(seed);
+    }
+
     public void setSand(int vert, int amount) {
         currentConfig.set(vert, amount);
+        if (wideConfig != null) {
+            wideConfig.set(vert, amount);
+        }
         onConfigEdit();
     }
 
@@ -1866,9 +2464,14 @@ public class SandpileController implements ActionListener {
             BufferedReader inBuffer = new BufferedReader(new FileReader(file));
             String line = inBuffer.readLine();
             this.delAllVerticesControl();
-            while (line != null) {
-                this.editFromString(line);
-                line = inBuffer.readLine();
+            startBuilding();
+            try {
+                while (line != null) {
+                    this.editFromString(line);
+                    line = inBuffer.readLine();
+                }
+            } finally {
+                finishBuilding();
             }
             inBuffer.close();
         } catch (IOException e) {
@@ -1882,7 +2485,12 @@ public class SandpileController implements ActionListener {
     }
 
     public void storeCurrentConfig(String name) {
-        configs.put(name, currentConfig);
+        configs.put(name, new PackedSandpileConfiguration(currentConfig));
+        if (wideConfig != null) {
+            wideConfigs.put(name, new WideSandpileConfiguration(wideConfig));
+        } else {
+            wideConfigs.remove(name);
+        }
         onEdit();
     }
 
@@ -1906,9 +2514,13 @@ public class SandpileController implements ActionListener {
             }
         }
         for (String configName : configs.keySet()) {
-            saveConfig(new File(file, configName + ".sc"), configs.get(configName));
+            if (wideConfigs.containsKey(configName)) {
+                saveConfig(new File(file, configName + ".sc"), wideConfigs.get(configName));
+            } else {
+                saveConfig(new File(file, configName + ".sc"), configs.get(configName));
+            }
         }
-        saveConfig(new File(file, "current.sc"), currentConfig);
+        saveConfig(new File(file, "current.sc"));
         projectFile = file;
         saved = true;
         return true;
@@ -1924,8 +2536,13 @@ public class SandpileController implements ActionListener {
                     System.err.println("Loading current");
                     loadCurrentConfig(new File(file, "current.sc"));
                 } else if (s.endsWith(".sc")) {
-                    System.err.println("Loading " + s.substring(0, s.length() - 3));
-                    configs.put(s.substring(0, s.length() - 3), loadConfig(new File(file, s)));
+                    String name = s.substring(0, s.length() - 3);
+                    System.err.println("Loading " + name);
+                    WideSandpileConfiguration config = loadWideConfig(new File(file, s));
+                    configs.put(name, new PackedSandpileConfiguration(config.toSaturated()));
+                    if (!config.fitsInInt()) {
+                        wideConfigs.put(name, config);
+                    }
                 }
             }
             projectFile = file;
@@ -1946,8 +2563,8 @@ public class SandpileController implements ActionListener {
                 outBuffer.newLine();
             }
             for (int v = 0; v < configSize(); v++) {
-                for (Edge e : sg.getOutgoingEdges(v)) {
-                    outBuffer.write("edge " + e.source() + " " + e.dest() + " " + e.wt());
+                for (int i = 0; i < sg.numOutgoingEdges(v); i++) {
+                    outBuffer.write("edge " + v + " " + sg.outgoingDestQuick(v, i) + " " + sg.outgoingWtQuick(v, i));
                     outBuffer.newLine();
                 }
             }
@@ -1959,13 +2576,48 @@ public class SandpileController implements ActionListener {
     }
 
     public void loadCurrentConfig(File file) {
-        setConfig(loadConfig(file));
+        setWideConfig(loadWideConfig(file));
         saved = true;
     }
 
+    /**
+     * Loads a config saved by saveConfig(), which may have more sand on a
+     * vertex than an int can hold.
+     */
+    public WideSandpileConfiguration loadWideConfig(File file) {
+        WideSandpileConfiguration config = new WideSandpileConfiguration();
+        try {
+            if (isPackedConfigFile(file)) {
+                return new WideSandpileConfiguration(loadConfig(file));
+            }
+            BufferedReader inBuffer = new BufferedReader(new FileReader(file));
+            String line = inBuffer.readLine();
+            while (line != null) {
+                config.add(Long.valueOf(line));
+                line = inBuffer.readLine();
+            }
+            inBuffer.close();
+        } catch (IOException e) {
+            System.err.println("Caught IOException while trying to load config: " + e.getMessage());
+        }
+        return config;
+    }
+
+    /**
+     * Loads a config saved by saveConfig(), either packed or as text with one
+     * value per line.
+     */
     public SandpileConfiguration loadConfig(File file) {
         SandpileConfiguration config = new SandpileConfiguration();
         try {
+            if (isPackedConfigFile(file)) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    return PackedSandpileConfiguration.read(in).unpack();
+                } finally {
+                    in.close();
+                }
+            }
             BufferedReader inBuffer = new BufferedReader(new FileReader(file));
             String line = inBuffer.readLine();
             while (line != null) {
@@ -1979,16 +2631,23 @@ public class SandpileController implements ActionListener {
         return config;
     }
 
+    /**
+     * Saves the current config. Configs are packed unless they are wide, in
+     * which case they are saved as text.
+     */
     public void saveConfig(File file) {
-        saveConfig(file, currentConfig);
+        if (wideConfig != null) {
+            saveConfig(file, wideConfig);
+        } else {
+            saveConfig(file, currentConfig);
+        }
     }
 
-    public void saveConfig(File file, SandpileConfiguration config) {
+    public void saveConfig(File file, WideSandpileConfiguration config) {
         try {
             BufferedWriter outBuffer = new BufferedWriter(new FileWriter(file));
             for (int i = 0; i < configSize(); i++) {
-                int v = config.get(i);
-                outBuffer.write(Integer.toString(v));
+                outBuffer.write(Long.toString(config.get(i)));
                 outBuffer.newLine();
             }
             outBuffer.close();
@@ -1997,6 +2656,37 @@ public class SandpileController implements ActionListener {
         }
     }
 
+    public void saveConfig(File file, SandpileConfiguration config) {
+        saveConfig(file, new PackedSandpileConfiguration(config));
+    }
+
+    /**
+     * Saves config in packed form, which loadConfig() can read.
+     */
+    public void saveConfig(File file, PackedSandpileConfiguration config) {
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                config.write(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Caught IOException while trying to save config: " + e.getMessage());
+        }
+    }
+
+    private boolean isPackedConfigFile(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == PackedSandpileConfiguration.MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
     public void setMinRepaintDelay(int delay) {
         minRepaintDelay = Math.max(delay, 0);
     }
@@ -2024,4 +2714,76 @@ public class SandpileController implements ActionListener {
     public boolean getTrackFirings() {
         return trackFirings;
     }
+
+    /**
+     * Sets how many times unstable vertices fire in each update() and during
+     * stabilize(). SandpileGraph.FiringMode.DIVIDE makes large piles of sand
+     * stabilize in far fewer updates, but each update no longer corresponds
+     * to firing every unstable vertex exactly once.
+     * @param mode The new firing mode.
+     */
+    public void setFiringMode(SandpileGraph.FiringMode mode) {
+        lockConfig();
+        try {
+            firingMode = mode;
+            updater = null;
+        } finally {
+            configLock.unlock();
+        }
+    }
+
+    public SandpileGraph.FiringMode getFiringMode() {
+        return firingMode;
+    }
+
+    /**
+     * Sets how stabilize() finds the stable configuration. The firing mode
+     * and number of update threads only apply to the TOPPLING strategy.
+     */
+    public void setStabilizationStrategy(SandpileGraph.StabilizationStrategy strategy) {
+        stabilizationStrategy = strategy;
+    }
+
+    public SandpileGraph.StabilizationStrategy getStabilizationStrategy() {
+        return stabilizationStrategy;
+    }
+
+    /**
+     * Sets the number of threads update() and stabilize() split each
+     * generation among. With 1 thread (the default), updates happen entirely
+     * on the calling thread. The resulting configurations are the same either
+     * way. Waits for a stabilize() using the old threads to finish.
+     * @param threads The number of threads to use.
+     */
+    public void setUpdateThreads(int threads) {
+        threads = Math.max(threads, 1);
+        poolLock.writeLock().lock();
+        lockConfig();
+        try {
+            if (updatePool != null) {
+                updatePool.shutdown();
+                updatePool = null;
+            }
+            if (threads > 1) {
+                updatePool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+                    public Thread newThread(Runnable r) {
+                        // Don't keep the application alive just for these.
+                        Thread t = new Thread(r, "sandpile-updater");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            updateThreads = threads;
+            updater = null;
+        } finally {
+            configLock.unlock();
+            poolLock.writeLock().unlock();
+        }
+    }
+
+    public int getUpdateThreads() {
+        return updateThreads;
+    }
 }
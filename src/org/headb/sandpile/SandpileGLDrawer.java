@@ -320,10 +320,9 @@ public class SandpileGLDrawer extends MouseInputAdapter implements MouseWheelLis
         gl.glBegin(gl.GL_LINES);
         int numVertices = graph.numVertices();
         for (int source = 0; source < numVertices; source++) {
-            EdgeList outEdges = graph.getOutgoingEdges(source);
-            int numOutEdges = outEdges.size();
+            int numOutEdges = graph.numOutgoingEdges(source);
             for (int i = 0; i < numOutEdges; i++) {
-                int dest = outEdges.destQuick(i);
+                int dest = graph.outgoingDestQuick(source, i);
                 float sx = vertexLocations.getQuick(source, 0);
                 float sy = vertexLocations.getQuick(source, 1);
                 float dx = vertexLocations.getQuick(dest, 0);
@@ -347,11 +346,10 @@ public class SandpileGLDrawer extends MouseInputAdapter implements MouseWheelLis
         tr.begin3DRendering();
         int numVertices = graph.numVertices();
         for (int source = 0; source < numVertices; source++) {
-            EdgeList outEdges = graph.getOutgoingEdges(source);
-            int numOutEdges = outEdges.size();
+            int numOutEdges = graph.numOutgoingEdges(source);
             for (int i = 0; i < numOutEdges; i++) {
-                int dest = outEdges.destQuick(i);
-                int wt = outEdges.wtQuick(i);
+                int dest = graph.outgoingDestQuick(source, i);
+                int wt = graph.outgoingWtQuick(source, i);
                 float sx = vertexLocations.get(source, 0);
                 float sy = vertexLocations.get(source, 1);
                 float dx = vertexLocations.get(dest, 0);
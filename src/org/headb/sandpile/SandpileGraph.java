@@ -28,8 +28,12 @@ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
  */
 package org.headb.sandpile;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TObjectIntHashMap;
 import gnu.trove.stack.array.TIntArrayStack;
 
 /**
@@ -45,40 +49,304 @@ import gnu.trove.stack.array.TIntArrayStack;
  */
 public class SandpileGraph {
 
+    /**
+     * Determines how many times an unstable vertex is fired in a single
+     * generation of an updater. Both modes give the same stable configuration;
+     * they only differ in how the configuration gets there.
+     */
+    public enum FiringMode {
+
+        /**
+         * Each unstable vertex fires once per generation.
+         */
+        SINGLE,
+        /**
+         * Each unstable vertex fires sand/degree times per generation, where
+         * sand is the amount it had at the start of the generation. When a
+         * lot of sand is piled on a few vertices, this takes orders of
+         * magnitude fewer generations than SINGLE.
+         */
+        DIVIDE
+    }
+
+    /**
+     * Determines how stabilizeConfig(config, strategy) finds the stable
+     * configuration. All strategies give the same result.
+     */
+    public enum StabilizationStrategy {
+
+        /**
+         * Fires unstable vertices until there aren't any.
+         */
+        TOPPLING,
+        /**
+         * Guesses how many times each vertex fires and corrects the guess
+         * with an OdometerSolver. Much faster for big piles of sand on a few
+         * vertices.
+         */
+        LEAST_ACTION,
+        /**
+         * Stabilizes a coarsened copy of the graph first and uses it to guess
+         * how many times each vertex fires. See MultiscaleStabilizer. Fastest
+         * for big piles of sand on large lattices.
+         */
+        MULTISCALE
+    }
+
+    /**
+     * Collects vertices and edges and adds them to a graph all at once. Edges
+     * are sorted by source and destination with a counting sort, parallel
+     * edges are merged, and each vertex's offsets are interned once, so
+     * building takes about O(V+E) rather than copying a vertex's edges for
+     * every edge added to it.
+     *
+     * Vertex indices are those of the graph being built: when adding to an
+     * existing graph, the first new vertex is graph.numVertices(). Edges out
+     * of vertices the graph already had are added one at a time.
+     */
+    public static class Builder {
+
+        private SandpileGraph graph;
+        private int numVertices;
+        // The source of each edge, and its destination in the high bits and
+        // weight in the low bits, so that sorting a vertex's edges sorts them
+        // by destination.
+        private TIntArrayList sources = new TIntArrayList();
+        private TLongArrayList edges = new TLongArrayList();
+        // Edges usually come a vertex at a time, in which case they don't
+        // need to be bucketed by source.
+        private boolean sortedBySource = true;
+        // Negative weights have to be applied in order; see build().
+        private boolean hasNegative = false;
+
+        /**
+         * Starts building a new graph.
+         */
+        public Builder() {
+            this(new SandpileGraph());
+        }
+
+        /**
+         * Starts building onto graph, which shouldn't be changed in other ways
+         * until build() is called.
+         */
+        public Builder(SandpileGraph graph) {
+            this.graph = graph;
+            this.numVertices = graph.numVertices();
+        }
+
+        /**
+         * Returns the number of vertices the graph will have.
+         */
+        public int numVertices() {
+            return numVertices;
+        }
+
+        /**
+         * Adds a vertex and returns its index.
+         */
+        public int addVertex() {
+            return numVertices++;
+        }
+
+        /**
+         * Adds amount vertices and returns the index of the first one.
+         */
+        public int addVertices(int amount) {
+            int first = numVertices;
+            numVertices += amount;
+            return first;
+        }
+
+        /**
+         * Increases the weight of the edge from sourceVert to destVert by
+         * weight. As with setOutgoingEdges(), a new vertex may have an edge to
+         * itself; such edges from vertices already in the graph are ignored,
+         * as with SandpileGraph.addEdge(). weight may be negative; as with
+         * SandpileGraph.addEdge(), the changes to an edge are applied in order
+         * and its weight never goes below 0.
+         * @throws IndexOutOfBoundsException If either vertex hasn't been
+         * added.
+         */
+        public void addEdge(int sourceVert, int destVert, int weight) {
+            if (sourceVert < 0 || sourceVert >= numVertices || destVert < 0 || destVert >= numVertices) {
+                throw new IndexOutOfBoundsException("Edge from " + sourceVert + " to " + destVert + " in a graph with " + numVertices + " vertices.");
+            }
+            if (weight == 0) {
+                return;
+            }
+            if (weight < 0) {
+                hasNegative = true;
+            }
+            if (sources.size() > 0 && sourceVert < sources.getQuick(sources.size() - 1)) {
+                sortedBySource = false;
+            }
+            sources.add(sourceVert);
+            edges.add(((long) destVert << 32) | (weight & 0xffffffffL));
+        }
+
+        /**
+         * Adds the edges sourceVerts[i] to destVerts[i] with weight
+         * weights[i], as addEdge() does.
+         */
+        public void addEdges(int[] sourceVerts, int[] destVerts, int[] weights) {
+            for (int i = 0; i < sourceVerts.length; i++) {
+                addEdge(sourceVerts[i], destVerts[i], weights[i]);
+            }
+        }
+
+        /**
+         * Adds everything to the graph and returns it.
+         */
+        public SandpileGraph build() {
+            int first = graph.numVertices();
+            int numNew = numVertices - first;
+            int numEdges = sources.size();
+            // Edges out of vertex v are edges[rowStart[v - first]] through
+            // edges[rowStart[v - first + 1] - 1]. Edges out of old vertices
+            // come first.
+            int[] rowStart = new int[numNew + 1];
+            int numOldEdges = 0;
+            for (int i = 0; i < numEdges; i++) {
+                int source = sources.getQuick(i);
+                if (source >= first) {
+                    rowStart[source - first + 1]++;
+                } else {
+                    numOldEdges++;
+                }
+            }
+            rowStart[0] = numOldEdges;
+            for (int v = 0; v < numNew; v++) {
+                rowStart[v + 1] += rowStart[v];
+            }
+            TLongArrayList sorted = edges;
+            if (!sortedBySource) {
+                sorted = new TLongArrayList(numEdges);
+                sorted.fill(0, numEdges, 0);
+                int[] next = new int[numNew];
+                System.arraycopy(rowStart, 0, next, 0, numNew);
+                int nextOld = 0;
+                for (int i = 0; i < numEdges; i++) {
+                    int source = sources.getQuick(i);
+                    if (source >= first) {
+                        sorted.setQuick(next[source - first]++, edges.getQuick(i));
+                    } else {
+                        sorted.setQuick(nextOld++, edges.getQuick(i));
+                        sources.setQuick(nextOld - 1, source);
+                    }
+                }
+                edges = null;
+            }
+            graph.ensureCapacity(numVertices);
+            for (int v = first; v < numVertices; v++) {
+                int start = rowStart[v - first];
+                int end = rowStart[v - first + 1];
+                EdgeOffsetList offsets = new EdgeOffsetList();
+                if (hasNegative) {
+                    mergeInOrder(sorted, start, end, v, offsets);
+                } else {
+                    sorted.sort(start, end);
+                    int i = start;
+                    while (i < end) {
+                        int dest = (int) (sorted.getQuick(i) >>> 32);
+                        int wt = 0;
+                        for (; i < end && (int) (sorted.getQuick(i) >>> 32) == dest; i++) {
+                            wt += (int) sorted.getQuick(i);
+                        }
+                        offsets.addEdge(dest - v, wt);
+                    }
+                }
+                graph.addVertexWithOffsets(offsets);
+            }
+            for (int i = 0; i < numOldEdges; i++) {
+                graph.addEdge(sources.getQuick(i), (int) (sorted.getQuick(i) >>> 32), (int) sorted.getQuick(i));
+            }
+            sources = new TIntArrayList();
+            edges = new TLongArrayList();
+            sortedBySource = true;
+            hasNegative = false;
+            return graph;
+        }
+
+        /**
+         * Adds the edges out of vertex v, from start to end in sorted, to
+         * offsets. The changes to each edge are applied in the order they were
+         * added, and a weight that would go below 0 stops at 0, as
+         * SandpileGraph.addEdge() does. Both the counting sort and edges
+         * that came in order of source keep each vertex's edges in the order
+         * they were added.
+         */
+        private static void mergeInOrder(TLongArrayList sorted, int start, int end, int v, EdgeOffsetList offsets) {
+            // Destination in the high bits and position in the low bits.
+            long[] order = new long[end - start];
+            for (int k = 0; k < order.length; k++) {
+                order[k] = (sorted.getQuick(start + k) & 0xffffffff00000000L) | k;
+            }
+            Arrays.sort(order);
+            int k = 0;
+            while (k < order.length) {
+                int dest = (int) (order[k] >>> 32);
+                int wt = 0;
+                for (; k < order.length && (int) (order[k] >>> 32) == dest; k++) {
+                    wt = Math.max(0, wt + (int) sorted.getQuick(start + (int) order[k]));
+                }
+                if (wt > 0) {
+                    offsets.addEdge(dest - v, wt);
+                }
+            }
+        }
+    }
+
     // Edges are represented by Edge arrays
     // where int[0] = source
     // int[1] = dest
     // int[2] = weight
-    private ArrayList<EdgeOffsetList> offsetLists;
-    private HashMap<EdgeOffsetList, Integer> vertexCounts;
+    // Vertices with the same edge offsets share one EdgeOffsetList. This maps
+    // each one to the shared copy, which is counted in vertexCounts and thrown
+    // away when no vertex uses it anymore. Shared lists must not be changed.
+    private HashMap<EdgeOffsetList, EdgeOffsetList> offsetLists;
+    private TObjectIntHashMap<EdgeOffsetList> vertexCounts;
     //private TIntArrayList degrees;
     private ArrayList<EdgeOffsetList> vertsToOffsetLists;
     private int[] degrees;
+    // Built when first needed and thrown away whenever the edges change.
+    private StencilStabilizer stencilStabilizer = null;
+    // Wide configurations are stabilized a bit at a time, so that no vertex
+    // ever has more sand than an int can hold. Each round adds at most this
+    // much sand...
+    private static final int WIDE_ROUND_SAND = 1 << 29;
+    // ...and vertices with less sand than this keep the rest on the side.
+    private static final int WIDE_NEGATIVE_LIMIT = -(1 << 30);
+    private CompressedGraph compressedGraph = null;
+    // The minimal burning config and the number of times each vertex
+    // reverse fires to make it, kept for isRecurrent().
+    private SandpileConfiguration burningConfig = null;
+    private int[] burningScript = null;
 
     /**
      * Creates a new, empty graph.
      */
     public SandpileGraph() {
-        this.offsetLists = new ArrayList<EdgeOffsetList>();
+        this.offsetLists = new HashMap<EdgeOffsetList, EdgeOffsetList>();
         this.vertsToOffsetLists = new ArrayList<EdgeOffsetList>();
-        this.vertexCounts = new HashMap<EdgeOffsetList, Integer>();
+        this.vertexCounts = new TObjectIntHashMap<EdgeOffsetList>();
         degrees = new int[0];
     }
 
     public SandpileGraph(SandpileGraph graph) {
-        this.offsetLists = new ArrayList<EdgeOffsetList>();
+        this.offsetLists = new HashMap<EdgeOffsetList, EdgeOffsetList>();
         this.vertsToOffsetLists = new ArrayList<EdgeOffsetList>();
-        this.vertexCounts = new HashMap<EdgeOffsetList, Integer>();
+        this.vertexCounts = new TObjectIntHashMap<EdgeOffsetList>();
         degrees = new int[graph.numVertices()];
 
         for (int v = 0; v < graph.numVertices(); v++) {
             addVertex();
+            removeVertexFromOffsetList(v);
             placeVertexWithOffsets(v, graph.getOffsetList(v));
-            degrees[v] = graph.degreeQuick(v);
         }
     }
 
-    private EdgeOffsetList getOffsetList(int vert) {
+    EdgeOffsetList getOffsetList(int vert) {
         return vertsToOffsetLists.get(vert);
     }
 
@@ -121,26 +389,72 @@ public class SandpileGraph {
         return vertsToOffsetLists.get(vert).getOutgoingEdges(vert);
     }
 
+    /**
+     * Returns the number of outgoing edges of the given vertex. Along with
+     * outgoingDestQuick() and outgoingWtQuick(), this walks the edges of a
+     * vertex without allocating anything:
+     * <pre>
+     * for (int i = 0; i < graph.numOutgoingEdges(v); i++) {
+     *     int dest = graph.outgoingDestQuick(v, i);
+     *     int wt = graph.outgoingWtQuick(v, i);
+     * }
+     * </pre>
+     * Incoming edges can be walked the same way with
+     * getCompressedGraph().reverse().
+     */
+    public int numOutgoingEdges(int vert) {
+        return vertsToOffsetLists.get(vert).size();
+    }
+
+    /**
+     * Returns the destination of the ith outgoing edge of the vertex. Does not
+     * check that i is in range.
+     */
+    public int outgoingDestQuick(int vert, int i) {
+        return vert + vertsToOffsetLists.get(vert).destOffsetQuick(i);
+    }
+
+    /**
+     * Returns the weight of the ith outgoing edge of the vertex. Does not
+     * check that i is in range.
+     */
+    public int outgoingWtQuick(int vert, int i) {
+        return vertsToOffsetLists.get(vert).wtQuick(i);
+    }
+
+    /**
+     * Returns a compressed sparse row snapshot of the edges. The snapshot is
+     * built the first time it is asked for and reused until the edges change,
+     * so this is cheap to call before every stabilization.
+     */
+    public CompressedGraph getCompressedGraph() {
+        if (compressedGraph == null) {
+            compressedGraph = new CompressedGraph(this);
+        }
+        return compressedGraph;
+    }
+
     private int getBlockSize(EdgeOffsetList offsetList) {
         return vertexCounts.get(offsetList);
     }
 
     private void incBlockSize(EdgeOffsetList offsetList) {
-        vertexCounts.put(offsetList, getBlockSize(offsetList) + 1);
+        vertexCounts.adjustValue(offsetList, 1);
     }
 
     private void decBlockSize(EdgeOffsetList offsetList) {
-        vertexCounts.put(offsetList, getBlockSize(offsetList) + 1);
+        vertexCounts.adjustValue(offsetList, -1);
     }
 
     private void addOffsetList(EdgeOffsetList offsetList) {
-        offsetLists.add(offsetList);
+        offsetLists.put(offsetList, offsetList);
         vertexCounts.put(offsetList, 0);
     }
 
     private boolean removeOffsetListIfEmpty(EdgeOffsetList offsetList) {
         if (getBlockSize(offsetList) == 0) {
             offsetLists.remove(offsetList);
+            vertexCounts.remove(offsetList);
             return true;
         }
         return false;
@@ -153,12 +467,7 @@ public class SandpileGraph {
     }
 
     private EdgeOffsetList getMatchingOffsetList(EdgeOffsetList offsetList) {
-        for (EdgeOffsetList ol : offsetLists) {
-            if (ol.equals(offsetList)) {
-                return ol;
-            }
-        }
-        return null;
+        return offsetLists.get(offsetList);
     }
 
     public void setOutgoingEdges(SingleSourceEdgeList edges) {
@@ -168,14 +477,17 @@ public class SandpileGraph {
         this.placeVertexWithOffsets(vert, offsetList);
     }
 
+    /**
+     * Retrieves the list of edges which end with the given vertex, in order
+     * of source. Uses the reverse of the compressed snapshot, so after the
+     * first call following an edit this takes time proportional to the
+     * number of incoming edges.
+     */
     public GeneralEdgeList getIncomingEdges(int vert) {
+        CompressedGraph reverse = getCompressedGraph().reverse();
         GeneralEdgeList edges = new GeneralEdgeList();
-        for (int v = 0; v < this.numVertices(); v++) {
-            for (Edge e : getOutgoingEdges(v)) {
-                if (e.dest() == vert) {
-                    edges.add(e);
-                }
-            }
+        for (int i = reverse.edgesStart(vert); i < reverse.edgesEnd(vert); i++) {
+            edges.add(reverse.dest(i), vert, reverse.wt(i));
         }
         return edges;
     }
@@ -198,19 +510,32 @@ public class SandpileGraph {
 
         vertsToOffsetLists.set(vert, offsetList);
         degrees[vert] = offsetList.degree();
+        stencilStabilizer = null;
+        compressedGraph = null;
+        burningConfig = null;
+        burningScript = null;
     }
 
     public void addVertex() {
+        addVertexWithOffsets(new EdgeOffsetList());
+    }
+
+    private void addVertexWithOffsets(EdgeOffsetList offsets) {
         vertsToOffsetLists.add(null);
         if (numVertices() > degrees.length) {
-            int[] newDegrees = new int[numVertices() * 2];
-            for (int i = 0; i < degrees.length; i++) {
-                newDegrees[i] = degrees[i];
-            }
-            degrees = newDegrees;
+            ensureCapacity(numVertices() * 2);
         }
-        placeVertexWithOffsets(this.numVertices() - 1, new EdgeOffsetList());
+        placeVertexWithOffsets(this.numVertices() - 1, offsets);
+    }
 
+    // Makes room for the degrees of the given number of vertices.
+    private void ensureCapacity(int vertices) {
+        if (vertices > degrees.length) {
+            int[] newDegrees = new int[vertices];
+            System.arraycopy(degrees, 0, newDegrees, 0, degrees.length);
+            degrees = newDegrees;
+        }
+        vertsToOffsetLists.ensureCapacity(vertices);
     }
 
 
@@ -234,36 +559,79 @@ public class SandpileGraph {
      * appropriately. Note that this means that the index of vertices will
      * change after using this function.
      *
+     * The graph is compacted in place. Only vertices with an edge to or across
+     * a removed vertex get new offsets, so this takes time proportional to the
+     * number of vertices plus the number of edges that change.
+     *
      * @param vertices A list of the vertices to remove.
      */
     public void removeVertices(TIntArrayList vertices) {
-        int[] translator = new int[numVertices()];
-        //ArrayList<EdgeOffsetList> oldOffsetLists = new ArrayList<EdgeOffsetList>(offsetLists);
-        ArrayList<EdgeOffsetList> oldVertsToOffsetLists = new ArrayList<EdgeOffsetList>(vertsToOffsetLists);
-        boolean[] toRemove = new boolean[numVertices()];
+        int n = numVertices();
+        // translator[v] is the new index of v, or -1 if v is being removed.
+        int[] translator = new int[n];
         for (int i = 0; i < vertices.size(); i++) {
-            int v = vertices.get(i);
-            toRemove[v] = true;
+            translator[vertices.get(i)] = -1;
         }
-        this.removeAllVertices();
-        int w = 0;
-        for (int v = 0; v < oldVertsToOffsetLists.size(); v++) {
-            if (!toRemove[v]) {
-                translator[v] = w;
-                w++;
+        TIntArrayList removed = new TIntArrayList();
+        for (int v = 0, w = 0; v < n; v++) {
+            if (translator[v] < 0) {
+                removed.add(v);
+            } else {
+                translator[v] = w++;
             }
         }
-        addVertices(w);
-        for (int v = 0; v < oldVertsToOffsetLists.size(); v++) {
-            if (toRemove[v]) {
+        if (removed.isEmpty()) {
+            return;
+        }
+        // The smallest and largest offset of each offset list, so that
+        // vertices whose edges don't cross a removed vertex can be skipped
+        // without looking at their edges.
+        IdentityHashMap<EdgeOffsetList, int[]> spans = new IdentityHashMap<EdgeOffsetList, int[]>();
+        int w = 0;
+        for (int v = 0; v < n; v++) {
+            EdgeOffsetList offsets = vertsToOffsetLists.get(v);
+            if (translator[v] < 0) {
+                decBlockSize(offsets);
+                removeOffsetListIfEmpty(offsets);
                 continue;
             }
-            for (Edge e : oldVertsToOffsetLists.get(v).getOutgoingEdges(v)) {
-                if (!toRemove[e.dest()]) {
-                    addEdge(translator[e.source()], translator[e.dest()], e.wt());
+            int[] span = spans.get(offsets);
+            if (span == null) {
+                span = new int[]{0, 0};
+                for (int i = 0; i < offsets.size(); i++) {
+                    span[0] = Math.min(span[0], offsets.destOffsetQuick(i));
+                    span[1] = Math.max(span[1], offsets.destOffsetQuick(i));
+                }
+                spans.put(offsets, span);
+            }
+            if (countBelow(removed, v + span[0]) == countBelow(removed, v + span[1] + 1)) {
+                vertsToOffsetLists.set(w, offsets);
+                degrees[w] = degrees[v];
+            } else {
+                EdgeOffsetList newOffsets = new EdgeOffsetList();
+                for (int i = 0; i < offsets.size(); i++) {
+                    int dest = translator[v + offsets.destOffsetQuick(i)];
+                    if (dest >= 0) {
+                        newOffsets.addEdge(dest - w, offsets.wtQuick(i));
+                    }
                 }
+                decBlockSize(offsets);
+                removeOffsetListIfEmpty(offsets);
+                placeVertexWithOffsets(w, newOffsets);
             }
+            w++;
         }
+        vertsToOffsetLists.subList(w, n).clear();
+        stencilStabilizer = null;
+        compressedGraph = null;
+        burningConfig = null;
+        burningScript = null;
+    }
+
+    // The number of elements of the sorted list that are less than x.
+    private static int countBelow(TIntArrayList sorted, int x) {
+        int i = sorted.binarySearch(x);
+        return i < 0 ? -(i + 1) : i;
     }
 
     /**
@@ -271,7 +639,12 @@ public class SandpileGraph {
      */
     public void removeAllVertices() {
         this.offsetLists.clear();
+        this.vertexCounts.clear();
         this.vertsToOffsetLists.clear();
+        stencilStabilizer = null;
+        compressedGraph = null;
+        burningConfig = null;
+        burningScript = null;
     }
 
     /**
@@ -365,17 +738,13 @@ public class SandpileGraph {
     }
 
     /**
-     * Returns a list containing the indices of all nonsink vertices.
+     * Returns a list containing the indices of all nonsink vertices. The
+     * indices are kept with the compressed snapshot, so this is just a copy
+     * until the graph is edited.
      * @return
      */
     public TIntArrayList getNonSinks() {
-        TIntArrayList nonsinks = new TIntArrayList();
-        for (int v = 0; v < numVertices(); v++) {
-            if (!isSinkQuick(v)) {
-                nonsinks.add(v);
-            }
-        }
-        return nonsinks;
+        return new TIntArrayList(getCompressedGraph().nonSinks());
     }
 
     /**
@@ -383,45 +752,27 @@ public class SandpileGraph {
      * @return A list of the indices of each sink vertex.
      */
     public TIntArrayList getSinks() {
-        TIntArrayList sinks = new TIntArrayList();
-        for (int v = 0; v < numVertices(); v++) {
-            if (isSink(v)) {
-                sinks.add(v);
-            }
-        }
-        return sinks;
+        return new TIntArrayList(getCompressedGraph().sinks());
     }
 
     public SandpileConfiguration fireVertices(SandpileConfiguration config, TIntArrayList verts) {
-        SandpileConfiguration newConfig = new SandpileConfiguration(config);
-        for (int i = 0; i < verts.size(); i++) {
-            int v = verts.get(i);
-            for (Edge e : getOutgoingEdges(v)) {
-                newConfig.set(e.dest(), newConfig.get(e.dest()) + e.wt());
-            }
-            newConfig.set(v, newConfig.get(v) - degreeQuick(v));
-        }
-        return newConfig;
+        return fireVerticesInPlace(new SandpileConfiguration(config), verts);
     }
 
     public SandpileConfiguration fireVerticesInPlace(SandpileConfiguration config, TIntArrayList verts) {
         for (int i = 0; i < verts.size(); i++) {
-            int v = verts.get(i);
-            for (Edge e : getOutgoingEdges(v)) {
-                config.set(e.dest(), config.get(e.dest()) + e.wt());
-            }
-            config.set(v, config.get(v) - degreeQuick(v));
+            fireVertexInPlace(config, verts.get(i));
         }
         return config;
     }
 
     public void fireVertexInPlace(SandpileConfiguration config, int vert) {
-        EdgeList edges = getOutgoingEdges(vert);
-        int s = edges.size();
-        for (int i = 0; i < s; i++) {
-            config.increaseQuick(edges.destQuick(i), edges.wtQuick(i));
+        CompressedGraph csr = getCompressedGraph();
+        int end = csr.rowStart[vert + 1];
+        for (int i = csr.rowStart[vert]; i < end; i++) {
+            config.increaseQuick(csr.dest[i], csr.wt[i]);
         }
-        config.increaseQuick(vert, -degreeQuick(vert));
+        config.increaseQuick(vert, -csr.degree[vert]);
     }
 
     public TIntArrayList getUnstables(SandpileConfiguration config) {
@@ -511,20 +862,63 @@ public class SandpileGraph {
 //		};
 //	}
     public Iterator<SandpileConfiguration> inPlaceParallelUpdater(final SandpileConfiguration config) {
-        return inPlaceParallelUpdaterStartingWith(config, getUnstables(config));
+        return inPlaceParallelUpdater(config, FiringMode.SINGLE);
+    }
+
+    public Iterator<SandpileConfiguration> inPlaceParallelUpdater(final SandpileConfiguration config, FiringMode mode) {
+        return inPlaceParallelUpdaterStartingWith(config, getUnstables(config), mode);
+    }
+
+    public Iterator<SandpileConfiguration> inPlaceParallelUpdater(final SandpileConfiguration config, FiringMode mode, AvalancheStats stats) {
+        return inPlaceParallelUpdaterStartingWith(config, getUnstables(config), mode, stats);
     }
 
     public Iterator<SandpileConfiguration> inPlaceParallelUpdaterStartingWith(final SandpileConfiguration config, final TIntArrayList startingVertices) {
+        return inPlaceParallelUpdaterStartingWith(config, startingVertices, FiringMode.SINGLE);
+    }
+
+    /**
+     * Returns an iterator whose next() method fires every unstable vertex of
+     * config in place. Only the vertices in startingVertices are considered
+     * unstable at the start; after that, the iterator keeps track of the
+     * unstable vertices itself.
+     * @param config The configuration to update. It is modified in place.
+     * @param startingVertices The vertices that may be unstable.
+     * @param mode How many times each unstable vertex fires per generation.
+     */
+    public Iterator<SandpileConfiguration> inPlaceParallelUpdaterStartingWith(final SandpileConfiguration config, final TIntArrayList startingVertices, final FiringMode mode) {
+        return inPlaceParallelUpdaterStartingWith(config, startingVertices, mode, null);
+    }
 
+    /**
+     * Same as inPlaceParallelUpdaterStartingWith(config, startingVertices,
+     * mode), but also adds each generation to stats, if it isn't null.
+     */
+    public Iterator<SandpileConfiguration> inPlaceParallelUpdaterStartingWith(final SandpileConfiguration config, final TIntArrayList startingVertices, final FiringMode mode, final AvalancheStats stats) {
+
+        // The updater works off a snapshot of the edges, so it stays
+        // consistent even if the graph is edited while it is in use.
+        CompressedGraph csr = getCompressedGraph();
+        final int[] rowStart = csr.rowStart;
+        final int[] dests = csr.dest;
+        final int[] wts = csr.wt;
+        final int[] degrees = csr.degree;
         final IntGenerationalQueue unstables = new IntGenerationalQueue(numVertices());
         final boolean[] added = new boolean[numVertices()];
         for (int i = 0; i < startingVertices.size(); i++) {
             int v = startingVertices.getQuick(i);
-            if (config.get(v) >= degreeQuick(v)) {
+            if (config.get(v) >= degreeQuick(v) && !isSinkQuick(v)) {
                 unstables.addUnsafe(v);
                 added[v] = true;
             }
         }
+        // In DIVIDE mode the whole generation is read before anything fires
+        // so that the number of firings doesn't depend on the order of the
+        // queue.
+        final int[] generation = mode == FiringMode.DIVIDE ? new int[numVertices()] : null;
+        final int[] timesToFire = mode == FiringMode.DIVIDE ? new int[numVertices()] : null;
+        // Which vertices have fired, for the area of the avalanche.
+        final boolean[] toppled = stats != null ? new boolean[numVertices()] : null;
         return new Iterator<SandpileConfiguration>() {
 
             public boolean hasNext() {
@@ -532,9 +926,14 @@ public class SandpileGraph {
             }
 
             public SandpileConfiguration next() {
+                if (mode == FiringMode.DIVIDE) {
+                    return nextDivided();
+                }
                 int numUnstables = unstables.nextGenerationLength();
                 unstables.goToNextGeneration();
                 //System.err.println(numUnstables);
+                int newlyToppled = 0;
+                long lost = 0;
                 // foreach unstable in the current generation...
                 for (int i = 0; i < numUnstables; i++) {
 
@@ -542,30 +941,28 @@ public class SandpileGraph {
                     int v = unstables.nextItemUnsafe();
                     // mark it as removed
                     added[v] = false;
+                    if (toppled != null && !toppled[v]) {
+                        toppled[v] = true;
+                        newlyToppled++;
+                    }
 
-                    //int timesToFire = config.getQuick(v) / degreeQuick(v);
-
-                    // We get the vertices edge info in the form of offsets.
-                    // Going through the offset list gives us more direct access
-                    // to the edge info.
-                    EdgeOffsetList offsetList = vertsToOffsetLists.get(v);
-                    int s = offsetList.size();
-                    for (int k = 0; k < s; k++) {
+                    int end = rowStart[v + 1];
+                    for (int k = rowStart[v]; k < end; k++) {
                         // Get the a neighboring vertex.
-                        int dest = offsetList.destOffsetQuick(k) + v;
+                        int dest = dests[k];
                         // Increase the sand on it.
-                        //config.increaseQuick(dest, offsetList.wtQuick(k)*timesToFire);
-                        config.increaseQuick(dest, offsetList.wtQuick(k));
+                        config.increaseQuick(dest, wts[k]);
                         // Check to see if we made it unstable.
-                        int degree = degreeQuick(dest);
-                        if (!added[dest] && config.getQuick(dest) >= degree && degree > 0) {
+                        int degree = degrees[dest];
+                        if (degree == 0) {
+                            lost += wts[k];
+                        } else if (!added[dest] && config.getQuick(dest) >= degree) {
                             unstables.addUnsafe(dest);
                             added[dest] = true;
                         }
                     }
                     // Remove the sand fired from our source vertex.
-                    int degree = offsetList.degree();
-                    //config.increaseQuick(v, -degree*timesToFire);
+                    int degree = degrees[v];
                     config.increaseQuick(v, -degree);
                     // if still unstable, include it in next generation
                     if (config.getQuick(v) >= degree) {
@@ -577,6 +974,57 @@ public class SandpileGraph {
                         added[v] = true;
                     }
                 }
+                if (stats != null) {
+                    stats.addGeneration(numUnstables, numUnstables, newlyToppled, lost);
+                }
+                return config;
+            }
+
+            private SandpileConfiguration nextDivided() {
+                int numUnstables = unstables.nextGenerationLength();
+                unstables.goToNextGeneration();
+                // First figure out how many times each unstable fires...
+                for (int i = 0; i < numUnstables; i++) {
+                    int v = unstables.nextItemUnsafe();
+                    generation[i] = v;
+                    timesToFire[i] = config.getQuick(v) / degrees[v];
+                }
+                long fired = 0;
+                int newlyToppled = 0;
+                long lost = 0;
+                // ...then fire them. A vertex stays marked as added until it
+                // fires so its neighbors don't queue it up a second time.
+                for (int i = 0; i < numUnstables; i++) {
+                    int v = generation[i];
+                    int times = timesToFire[i];
+                    added[v] = false;
+                    fired += times;
+                    if (toppled != null && !toppled[v]) {
+                        toppled[v] = true;
+                        newlyToppled++;
+                    }
+                    int end = rowStart[v + 1];
+                    for (int k = rowStart[v]; k < end; k++) {
+                        int dest = dests[k];
+                        config.increaseQuick(dest, wts[k] * times);
+                        int degree = degrees[dest];
+                        if (degree == 0) {
+                            lost += (long) wts[k] * times;
+                        } else if (!added[dest] && config.getQuick(dest) >= degree) {
+                            unstables.addUnsafe(dest);
+                            added[dest] = true;
+                        }
+                    }
+                    int degree = degrees[v];
+                    config.increaseQuick(v, -degree * times);
+                    if (config.getQuick(v) >= degree) {
+                        unstables.addUnsafe(v);
+                        added[v] = true;
+                    }
+                }
+                if (stats != null) {
+                    stats.addGeneration(fired, numUnstables, newlyToppled, lost);
+                }
                 return config;
             }
 
@@ -586,6 +1034,35 @@ public class SandpileGraph {
         };
     }
 
+    /**
+     * Returns an updater that behaves exactly like the one returned by
+     * inPlaceParallelUpdater(config, mode), but splits each generation among
+     * the given number of workers running on pool.
+     * @param config The configuration to update. It is modified in place.
+     * @param mode How many times each unstable vertex fires per generation.
+     * @param pool The threads to run the workers on.
+     * @param workers The number of pieces to split each generation into.
+     */
+    public Iterator<SandpileConfiguration> concurrentUpdater(SandpileConfiguration config, FiringMode mode, ExecutorService pool, int workers) {
+        return new ConcurrentGenerationUpdater(this, config, getUnstables(config), mode, pool, workers);
+    }
+
+    /**
+     * Same as concurrentUpdater(config, mode, pool, workers), but also adds
+     * each generation to stats, if it isn't null.
+     */
+    public Iterator<SandpileConfiguration> concurrentUpdater(SandpileConfiguration config, FiringMode mode, ExecutorService pool, int workers, AvalancheStats stats) {
+        return concurrentUpdaterStartingWith(config, getUnstables(config), mode, pool, workers, stats);
+    }
+
+    /**
+     * Same as concurrentUpdater(config, mode, pool, workers, stats), but only
+     * the vertices in startingVertices are considered unstable at the start.
+     */
+    public Iterator<SandpileConfiguration> concurrentUpdaterStartingWith(SandpileConfiguration config, TIntArrayList startingVertices, FiringMode mode, ExecutorService pool, int workers, AvalancheStats stats) {
+        return new ConcurrentGenerationUpdater(this, config, startingVertices, mode, pool, workers, stats);
+    }
+
     /**
      * Takes in a configuration and outputs the resulting configuration
      */
@@ -595,18 +1072,20 @@ public class SandpileGraph {
     public SandpileConfiguration reverseFireVertex(SandpileConfiguration config, int vert) {
         SandpileConfiguration newConfig = new SandpileConfiguration(config);
         newConfig.set(vert, config.get(vert) + degreeQuick(vert));
-        for (Edge e : getOutgoingEdges(vert)) {
-            newConfig.set(e.dest(), newConfig.get(e.dest()) - e.wt());
+        EdgeOffsetList offsets = getOffsetList(vert);
+        for (int i = 0; i < offsets.size(); i++) {
+            int dest = vert + offsets.destOffsetQuick(i);
+            newConfig.set(dest, newConfig.get(dest) - offsets.wtQuick(i));
         }
         return newConfig;
     }
 
     public SandpileConfiguration reverseFireVertexInPlace(SandpileConfiguration config, int vert) {
-        config.increaseQuick(vert, degreeQuick(vert));
-        EdgeList edges = getOutgoingEdges(vert);
-        int s = edges.size();
-        for (int i = 0; i < s; i++) {
-            config.increaseQuick(edges.destQuick(i), -edges.wtQuick(i));
+        CompressedGraph csr = getCompressedGraph();
+        config.increaseQuick(vert, csr.degree[vert]);
+        int end = csr.rowStart[vert + 1];
+        for (int i = csr.rowStart[vert]; i < end; i++) {
+            config.increaseQuick(csr.dest[i], -csr.wt[i]);
         }
         return config;
     }
@@ -614,10 +1093,7 @@ public class SandpileGraph {
     public SandpileConfiguration reverseFireConfig(SandpileConfiguration config) {
         SandpileConfiguration newConfig = new SandpileConfiguration(config);
         for (int sourceVert = 0; sourceVert < config.size(); sourceVert++) {
-            newConfig.set(sourceVert, newConfig.get(sourceVert) + degreeQuick(sourceVert));
-            for (Edge e : this.getOutgoingEdges(sourceVert)) {
-                newConfig.set(e.dest(), newConfig.get(e.dest()) - weight(sourceVert, e.dest()));
-            }
+            reverseFireVertexInPlace(newConfig, sourceVert);
         }
         return newConfig;
     }
@@ -627,12 +1103,34 @@ public class SandpileGraph {
      * WARNING: If the graph does not have a global sink, this function may not end.
      */
     public SandpileConfiguration stabilizeConfig(SandpileConfiguration config) throws InterruptedException {
-        return stabilizeConfigStartingWith(config, getUnstables(config));
+        return stabilizeConfig(config, FiringMode.SINGLE);
+    }
+
+    /**
+     * Updates the graph until all vertices stabilize, firing vertices
+     * according to mode. The result does not depend on mode.
+     * WARNING: If the graph does not have a global sink, this function may not end.
+     */
+    public SandpileConfiguration stabilizeConfig(SandpileConfiguration config, FiringMode mode) throws InterruptedException {
+        return stabilizeConfigStartingWith(config, getUnstables(config), mode);
     }
 
     public SandpileConfiguration stabilizeConfigStartingWith(SandpileConfiguration config, TIntArrayList starters) throws InterruptedException {
+        return stabilizeConfigStartingWith(config, starters, FiringMode.SINGLE);
+    }
+
+    public SandpileConfiguration stabilizeConfigStartingWith(SandpileConfiguration config, TIntArrayList starters, FiringMode mode) throws InterruptedException {
+        SandpileConfiguration stableConfig = new SandpileConfiguration(config);
+        return stabilizeConfigInPlaceStartingWith(stableConfig, starters, mode);
+    }
+
+    /**
+     * Updates the graph until all vertices stabilize, using concurrentUpdater().
+     * WARNING: If the graph does not have a global sink, this function may not end.
+     */
+    public SandpileConfiguration stabilizeConfig(SandpileConfiguration config, FiringMode mode, ExecutorService pool, int workers) throws InterruptedException {
         SandpileConfiguration stableConfig = new SandpileConfiguration(config);
-        Iterator<SandpileConfiguration> updater = this.inPlaceParallelUpdaterStartingWith(stableConfig, starters);
+        Iterator<SandpileConfiguration> updater = concurrentUpdater(stableConfig, mode, pool, workers);
         for (; updater.hasNext();) {
             updater.next();
             if (Thread.interrupted()) {
@@ -647,12 +1145,32 @@ public class SandpileGraph {
      * WARNING: If the graph does not have a global sink, this function may not end.
      */
     public SandpileConfiguration stabilizeConfigInPlace(SandpileConfiguration config) throws InterruptedException {
-        return stabilizeConfigInPlaceStartingWith(config, getUnstables(config));
+        return stabilizeConfigInPlace(config, FiringMode.SINGLE);
+    }
+
+    public SandpileConfiguration stabilizeConfigInPlace(SandpileConfiguration config, FiringMode mode) throws InterruptedException {
+        return stabilizeConfigInPlaceStartingWith(config, getUnstables(config), mode);
     }
 
     public SandpileConfiguration stabilizeConfigInPlaceStartingWith(SandpileConfiguration config, TIntArrayList starters) throws InterruptedException {
+        return stabilizeConfigInPlaceStartingWith(config, starters, FiringMode.SINGLE);
+    }
+
+    /**
+     * Updates config in place until all vertices stabilize. Only the vertices
+     * in starters (and those they make unstable) are considered. If the graph
+     * has long runs of vertices with identical edges, as grids do, they are
+     * stabilized with a StencilStabilizer instead, which gives the same result
+     * regardless of mode.
+     * WARNING: If the graph does not have a global sink, this function may not end.
+     */
+    public SandpileConfiguration stabilizeConfigInPlaceStartingWith(SandpileConfiguration config, TIntArrayList starters, FiringMode mode) throws InterruptedException {
+        StencilStabilizer stencils = getStencilStabilizer();
+        if (stencils.hasStencils()) {
+            return stencils.stabilizeInPlace(config, starters);
+        }
         SandpileConfiguration stableConfig = config;
-        Iterator<SandpileConfiguration> updater = this.inPlaceParallelUpdaterStartingWith(config, starters);
+        Iterator<SandpileConfiguration> updater = this.inPlaceParallelUpdaterStartingWith(config, starters, mode);
         for (; updater.hasNext();) {
             updater.next();
             if (Thread.interrupted()) {
@@ -663,15 +1181,251 @@ public class SandpileGraph {
     }
 
     /**
-     * Returns the number of edges from the first vertex to the second.
+     * Stabilizes a memory mapped configuration in place, firing each unstable
+     * vertex as many times as it can at once. Only the graph and a bit per
+     * vertex are kept on the heap. The result is the same as for any other
+     * stabilization, and the file holds it once this returns.
+     * WARNING: If the graph does not have a global sink, this function may not end.
      */
-    public int weight(int originVert, int destVert) {
-        for (Edge e : getOutgoingEdges(originVert)) {
-            if (e.dest() == destVert) {
-                return e.wt();
+    public void stabilizeConfigInPlace(MappedSandpileConfiguration config) throws InterruptedException {
+        CompressedGraph csr = getCompressedGraph();
+        int n = csr.numVertices;
+        int[] rowStart = csr.rowStart;
+        int[] dests = csr.dest;
+        int[] wts = csr.wt;
+        int[] degrees = csr.degree;
+        long[] added = new long[(n + 63) >>> 6];
+        TIntArrayStack unstables = new TIntArrayStack();
+        for (int v = 0; v < n; v++) {
+            if (degrees[v] > 0 && config.get(v) >= degrees[v]) {
+                added[v >>> 6] |= 1L << v;
+                unstables.push(v);
+            }
+        }
+        int pops = 0;
+        while (unstables.size() > 0) {
+            if ((++pops & 0xffff) == 0 && Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            int v = unstables.pop();
+            added[v >>> 6] &= ~(1L << v);
+            int degree = degrees[v];
+            int sand = config.get(v);
+            int times = sand / degree;
+            config.set(v, sand - degree * times);
+            int end = rowStart[v + 1];
+            for (int i = rowStart[v]; i < end; i++) {
+                int w = dests[i];
+                int wSand = config.get(w) + wts[i] * times;
+                config.set(w, wSand);
+                if ((added[w >>> 6] & (1L << w)) == 0 && degrees[w] > 0 && wSand >= degrees[w]) {
+                    added[w >>> 6] |= 1L << w;
+                    unstables.push(w);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stabilizes a configuration that needs longs, using the given strategy.
+     * The sand is added to an int configuration a round at a time and
+     * stabilized, while the sand on sinks and any sand too far below zero is
+     * kept on the side. Since adding sand and stabilizing can be done in any
+     * order, the result is the same as stabilizing it all at once. A
+     * configuration with less than 2^29 grains in all takes a single round.
+     * WARNING: If the graph does not have a global sink, this function may not end.
+     */
+    public WideSandpileConfiguration stabilizeConfig(WideSandpileConfiguration config, StabilizationStrategy strategy) throws InterruptedException {
+        int n = numVertices();
+        // The sand that isn't in current yet.
+        long[] pending = new long[n];
+        SandpileConfiguration current = new SandpileConfiguration(n);
+        for (int v = 0; v < n; v++) {
+            long sand = config.getQuick(v);
+            if (isSinkQuick(v) || sand > 0) {
+                current.add(0);
+                pending[v] = sand;
+            } else {
+                int part = (int) Math.max(sand, WIDE_NEGATIVE_LIMIT);
+                current.add(part);
+                pending[v] = sand - part;
+            }
+        }
+        boolean more = true;
+        while (more) {
+            more = false;
+            long budget = WIDE_ROUND_SAND;
+            for (int v = 0; v < n; v++) {
+                if (pending[v] > 0 && !isSinkQuick(v)) {
+                    long part = Math.min(pending[v], budget);
+                    current.increaseQuick(v, (int) part);
+                    pending[v] -= part;
+                    budget -= part;
+                    more |= pending[v] > 0;
+                }
+            }
+            current = stabilizeConfig(current, strategy);
+            for (int v = 0; v < n; v++) {
+                if (isSinkQuick(v)) {
+                    pending[v] += current.getQuick(v);
+                    current.setQuick(v, 0);
+                } else if (pending[v] < 0) {
+                    long sand = current.getQuick(v) + pending[v];
+                    int part = (int) Math.max(sand, WIDE_NEGATIVE_LIMIT);
+                    current.setQuick(v, part);
+                    pending[v] = sand - part;
+                }
+            }
+        }
+        WideSandpileConfiguration result = new WideSandpileConfiguration(n);
+        for (int v = 0; v < n; v++) {
+            result.add(current.getQuick(v) + pending[v]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns an iterator whose next() method fires every unstable vertex of
+     * config in place, exactly like the one returned by
+     * inPlaceParallelUpdater(config, mode), but for configurations that need
+     * longs.
+     * @param config The configuration to update. It is modified in place.
+     * @param mode How many times each unstable vertex fires per generation.
+     */
+    public Iterator<WideSandpileConfiguration> wideUpdater(WideSandpileConfiguration config, FiringMode mode) {
+        return wideUpdater(config, mode, null);
+    }
+
+    /**
+     * Like wideUpdater(config, mode), but every value that changes is also
+     * copied into mirror, saturated to fit in an int, so that mirror can be
+     * kept in step without rescanning the whole config each generation.
+     */
+    Iterator<WideSandpileConfiguration> wideUpdater(final WideSandpileConfiguration config, final FiringMode mode, final SandpileConfiguration mirror) {
+        CompressedGraph csr = getCompressedGraph();
+        final int[] rowStart = csr.rowStart;
+        final int[] dests = csr.dest;
+        final int[] wts = csr.wt;
+        final int[] degrees = csr.degree;
+        final boolean[] added = new boolean[numVertices()];
+        final long[] timesToFire = new long[numVertices()];
+        final TIntArrayList unstables = new TIntArrayList();
+        for (int v = 0; v < numVertices(); v++) {
+            if (degrees[v] > 0 && config.getQuick(v) >= degrees[v]) {
+                added[v] = true;
+                unstables.add(v);
+            }
+        }
+        return new Iterator<WideSandpileConfiguration>() {
+
+            private TIntArrayList current = unstables;
+            private TIntArrayList next = new TIntArrayList();
+
+            public boolean hasNext() {
+                return !current.isEmpty();
+            }
+
+            public WideSandpileConfiguration next() {
+                long[] data = config.getData();
+                int size = current.size();
+                // Read the whole generation before anything fires, as in
+                // DIVIDE mode. In SINGLE mode, every vertex fires once anyway.
+                for (int i = 0; i < size; i++) {
+                    int v = current.getQuick(i);
+                    timesToFire[i] = mode == FiringMode.DIVIDE ? data[v] / degrees[v] : 1;
+                }
+                for (int i = 0; i < size; i++) {
+                    int v = current.getQuick(i);
+                    long times = timesToFire[i];
+                    added[v] = false;
+                    int end = rowStart[v + 1];
+                    for (int k = rowStart[v]; k < end; k++) {
+                        int dest = dests[k];
+                        data[dest] += wts[k] * times;
+                        if (mirror != null) {
+                            mirror.setQuick(dest, WideSandpileConfiguration.saturate(data[dest]));
+                        }
+                        int degree = degrees[dest];
+                        if (!added[dest] && degree > 0 && data[dest] >= degree) {
+                            added[dest] = true;
+                            next.add(dest);
+                        }
+                    }
+                    int degree = degrees[v];
+                    data[v] -= degree * times;
+                    if (mirror != null) {
+                        mirror.setQuick(v, WideSandpileConfiguration.saturate(data[v]));
+                    }
+                    if (data[v] >= degree) {
+                        added[v] = true;
+                        next.add(v);
+                    }
+                }
+                TIntArrayList swap = current;
+                current = next;
+                next = swap;
+                next.resetQuick();
+                return config;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
             }
+        };
+    }
+
+    /**
+     * Updates a copy of config a generation at a time until it repeats. This
+     * ends even when the graph has no global sink, as on tori, as long as the
+     * configuration starts cycling within maxGenerations. See OrbitFinder.
+     * @return The cycle config ends up in, or null if it doesn't repeat
+     * within maxGenerations.
+     */
+    public OrbitFinder.Orbit findOrbit(SandpileConfiguration config, FiringMode mode, int maxGenerations) throws InterruptedException {
+        return new OrbitFinder(this, mode).find(config, maxGenerations);
+    }
+
+    /**
+     * Updates the graph until all vertices stabilize, using the given
+     * strategy.
+     * WARNING: If the graph does not have a global sink, this function may not end.
+     */
+    public SandpileConfiguration stabilizeConfig(SandpileConfiguration config, StabilizationStrategy strategy) throws InterruptedException {
+        switch (strategy) {
+            case LEAST_ACTION:
+                return stabilizeConfigLeastAction(config);
+            case MULTISCALE:
+                return new MultiscaleStabilizer(this).stabilize(config);
+            default:
+                return stabilizeConfig(config);
+        }
+    }
+
+    /**
+     * Stabilizes config by solving for the number of times each vertex fires
+     * first. See OdometerSolver, which can also return the odometer.
+     * WARNING: If the graph does not have a global sink, this function may not end.
+     */
+    public SandpileConfiguration stabilizeConfigLeastAction(SandpileConfiguration config) throws InterruptedException {
+        return new OdometerSolver(this).stabilize(config);
+    }
+
+    /**
+     * Returns the StencilStabilizer for the graph as it is now, building it
+     * the first time it's asked for after an edit.
+     */
+    StencilStabilizer getStencilStabilizer() {
+        if (stencilStabilizer == null) {
+            stencilStabilizer = new StencilStabilizer(this);
         }
-        return 0;
+        return stencilStabilizer;
+    }
+
+    /**
+     * Returns the number of edges from the first vertex to the second.
+     */
+    public int weight(int originVert, int destVert) {
+        return getOffsetList(originVert).wtForOffset(destVert - originVert);
     }
 
     /**
@@ -729,7 +1483,37 @@ public class SandpileGraph {
      * @return Returns a list representing the configuration.
      */
     public SandpileConfiguration getMinimalBurningConfig() throws InterruptedException {
+        return getMinimalBurningConfig((int[]) null);
+    }
+
+    /**
+     * Calculates the minimal burning configuration of the graph, adding the
+     * number of times each vertex reverse fires to make it to script, if it
+     * isn't null.
+     */
+    private SandpileConfiguration getMinimalBurningConfig(int[] script) throws InterruptedException {
         SandpileConfiguration config = reverseFireConfig(getUniformConfig(0));
+        if (script != null) {
+            for (int v = 0; v < numVertices(); v++) {
+                if (!isSinkQuick(v)) {
+                    script[v]++;
+                }
+            }
+        }
+        reverseFireDebtsUntil(config, script, Long.MAX_VALUE);
+        return config;
+    }
+
+    /**
+     * Reverse fires vertices in config until no non-sink is in debt, adding
+     * the number of times each fires to script, if it isn't null. Like
+     * firing, reverse firing can be done in any order, so if this stops early
+     * because System.nanoTime() reached deadline, calling it again on config
+     * finishes the job.
+     * @return false if it stopped early.
+     */
+    private boolean reverseFireDebtsUntil(SandpileConfiguration config, int[] script, long deadline) throws InterruptedException {
+        CompressedGraph csr = getCompressedGraph();
         TIntArrayStack inDebts = new TIntArrayStack();
         boolean[] added = new boolean[numVertices()];
         for (int v = 0; v < this.numVertices(); v++) {
@@ -746,21 +1530,189 @@ public class SandpileGraph {
             int v = inDebts.pop();
             added[v] = false;
             reverseFireVertexInPlace(config, v);
+            if (script != null) {
+                script[v]++;
+            }
             if (config.getQuick(v) < 0 && !isSinkQuick(v)) {
                 added[v] = true;
                 inDebts.push(v);
             }
-            EdgeList edges = getOutgoingEdges(v);
-            int s = edges.size();
-            for (int i = 0; i < s; i++) {
-                int w = edges.destQuick(i);
+            int end = csr.rowStart[v + 1];
+            for (int i = csr.rowStart[v]; i < end; i++) {
+                int w = csr.dest[i];
                 if (!added[w] && config.getQuick(w) < 0 && !isSinkQuick(w)) {
                     added[w] = true;
                     inDebts.push(w);
                 }
             }
+            if (deadline != Long.MAX_VALUE && System.nanoTime() >= deadline) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculates whether or not the given configuration is recurrent, using
+     * Dhar's burning algorithm. config is recurrent exactly when it is stable
+     * and adding the minimal burning config to it and stabilizing fires each
+     * vertex as many times as it reverse fired to make the burning config. On
+     * undirected graphs, that's once per vertex, so this runs in O(V+E). The
+     * burning config is only calculated once until the graph changes.
+     * @throws IndexOutOfBoundsException If config isn't the size of the graph.
+     */
+    public boolean isRecurrent(SandpileConfiguration config) throws InterruptedException {
+        CompressedGraph csr = getCompressedGraph();
+        int n = csr.numVertices;
+        if (config.size() != n) {
+            throw new IndexOutOfBoundsException("Tried to check whether a configuration of size " + config.size() + " is recurrent on a graph with " + n + " vertices.");
+        }
+        int[] rowStart = csr.rowStart;
+        int[] dests = csr.dest;
+        int[] wts = csr.wt;
+        int[] degrees = csr.degree;
+        if (burningScript == null) {
+            int[] script = new int[n];
+            burningConfig = getMinimalBurningConfig(script);
+            burningScript = script;
+        }
+        int[] script = burningScript;
+        int[] data = new int[n];
+        for (int v = 0; v < n; v++) {
+            int sand = config.getQuick(v);
+            if (degrees[v] > 0 && (sand < 0 || sand >= degrees[v])) {
+                return false;
+            }
+            data[v] = sand + burningConfig.getQuick(v);
+        }
+        // Since config is stable, firing each vertex as many times as in the
+        // script gives config back, so no vertex fires more than that.
+        int[] fired = new int[n];
+        TIntArrayStack unstables = new TIntArrayStack();
+        boolean[] added = new boolean[n];
+        for (int v = 0; v < n; v++) {
+            if (degrees[v] > 0 && data[v] >= degrees[v]) {
+                added[v] = true;
+                unstables.push(v);
+            }
+        }
+        int pops = 0;
+        while (unstables.size() > 0) {
+            if ((++pops & 0xffff) == 0 && Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            int v = unstables.pop();
+            added[v] = false;
+            int degree = degrees[v];
+            int times = data[v] / degree;
+            data[v] -= degree * times;
+            fired[v] += times;
+            int end = rowStart[v + 1];
+            for (int i = rowStart[v]; i < end; i++) {
+                int w = dests[i];
+                data[w] += wts[i] * times;
+                if (!added[w] && degrees[w] > 0 && data[w] >= degrees[w]) {
+                    added[w] = true;
+                    unstables.push(w);
+                }
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            if (fired[v] != script[v]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Like isRecurrent(SandpileConfiguration), but for a memory mapped
+     * configuration. Rather than copying config to the heap, the burning
+     * config is added to it and stabilized in place, and afterwards the
+     * firings and the burning config are taken back out, so config is left as
+     * it was even if this is interrupted.
+     */
+    public boolean isRecurrent(MappedSandpileConfiguration config) throws InterruptedException {
+        CompressedGraph csr = getCompressedGraph();
+        int n = csr.numVertices;
+        if (config.size() != n) {
+            throw new IndexOutOfBoundsException("Tried to check whether a configuration of size " + config.size() + " is recurrent on a graph with " + n + " vertices.");
+        }
+        int[] rowStart = csr.rowStart;
+        int[] dests = csr.dest;
+        int[] wts = csr.wt;
+        int[] degrees = csr.degree;
+        for (int v = 0; v < n; v++) {
+            int sand = config.get(v);
+            if (degrees[v] > 0 && (sand < 0 || sand >= degrees[v])) {
+                return false;
+            }
+        }
+        if (burningScript == null) {
+            int[] script = new int[n];
+            burningConfig = getMinimalBurningConfig(script);
+            burningScript = script;
+        }
+        int[] script = burningScript;
+        SandpileConfiguration burning = burningConfig;
+        for (int v = 0; v < n; v++) {
+            config.increase(v, burning.getQuick(v));
+        }
+        int[] fired = new int[n];
+        try {
+            long[] added = new long[(n + 63) >>> 6];
+            TIntArrayStack unstables = new TIntArrayStack();
+            for (int v = 0; v < n; v++) {
+                if (degrees[v] > 0 && config.get(v) >= degrees[v]) {
+                    added[v >>> 6] |= 1L << v;
+                    unstables.push(v);
+                }
+            }
+            int pops = 0;
+            while (unstables.size() > 0) {
+                if ((++pops & 0xffff) == 0 && Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                int v = unstables.pop();
+                added[v >>> 6] &= ~(1L << v);
+                int degree = degrees[v];
+                int sand = config.get(v);
+                int times = sand / degree;
+                config.set(v, sand - degree * times);
+                fired[v] += times;
+                int end = rowStart[v + 1];
+                for (int i = rowStart[v]; i < end; i++) {
+                    int w = dests[i];
+                    int wSand = config.get(w) + wts[i] * times;
+                    config.set(w, wSand);
+                    if ((added[w >>> 6] & (1L << w)) == 0 && degrees[w] > 0 && wSand >= degrees[w]) {
+                        added[w >>> 6] |= 1L << w;
+                        unstables.push(w);
+                    }
+                }
+            }
+            for (int v = 0; v < n; v++) {
+                if (fired[v] != script[v]) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            // Unfire everything that fired and take the burning config back out.
+            for (int v = 0; v < n; v++) {
+                int times = fired[v];
+                if (times != 0) {
+                    config.increase(v, degrees[v] * times);
+                    int end = rowStart[v + 1];
+                    for (int i = rowStart[v]; i < end; i++) {
+                        config.increase(dests[i], -wts[i] * times);
+                    }
+                }
+            }
+            for (int v = 0; v < n; v++) {
+                config.increase(v, -burning.getQuick(v));
+            }
         }
-        return config;
     }
 
     /**
@@ -849,4 +1801,153 @@ public class SandpileGraph {
     public SandpileConfiguration getIdentityConfig() throws InterruptedException {
         return getEquivalentRecurrent(getUniformConfig(0));
     }
+
+    /**
+     * Calculates the identity configuration of the graph as
+     * stabilize(2 * max - stabilize(2 * max)), where max is getMaxConfig().
+     * The sand added to the max config is equivalent to no sand at all, so
+     * the result is both recurrent and equivalent to the empty config. This
+     * only takes two stabilizations, each using the given strategy, which is
+     * much faster than getIdentityConfig() on big graphs. The result is the
+     * same.
+     * WARNING: If the graph does not have an identity (there is no global
+     * sink or something), this function will never end!
+     * @return The identity configuration.
+     */
+    public SandpileConfiguration getIdentityConfig(StabilizationStrategy strategy) throws InterruptedException {
+        SandpileConfiguration doubleMax = getMaxConfig().times(2);
+        SandpileConfiguration stableDoubleMax = stabilizeConfig(doubleMax, strategy);
+        SandpileConfiguration config = doubleMax.plusEquals(stableDoubleMax.times(-1));
+        return stabilizeConfig(config, strategy);
+    }
+
+    /**
+     * Calculates the identity configuration the same way as
+     * getIdentityConfig(StabilizationStrategy) does with TOPPLING, saving its
+     * progress to checkpoint as it goes. If it is interrupted or killed,
+     * resume() picks up where it left off.
+     */
+    public SandpileConfiguration getIdentityConfig(StabilizationCheckpoint checkpoint) throws InterruptedException, IOException {
+        SandpileConfiguration doubleMax = getMaxConfig().times(2);
+        checkpoint.start(StabilizationCheckpoint.Stage.IDENTITY_DOUBLE_MAX, getCompressedGraph().fingerprint());
+        checkpoint.save(doubleMax);
+        return finishIdentity(doubleMax, checkpoint);
+    }
+
+    /**
+     * Stabilizes config, saving its progress to checkpoint as it goes. If it
+     * is interrupted or killed, resume() picks up where it left off.
+     * WARNING: If the graph does not have a global sink, this function may not end.
+     */
+    public SandpileConfiguration stabilizeConfig(SandpileConfiguration config, StabilizationCheckpoint checkpoint) throws InterruptedException, IOException {
+        SandpileConfiguration stableConfig = new SandpileConfiguration(config);
+        checkpoint.start(StabilizationCheckpoint.Stage.STABILIZE, getCompressedGraph().fingerprint());
+        checkpoint.save(stableConfig);
+        stabilizeInPlace(stableConfig, checkpoint);
+        checkpoint.finish();
+        return stableConfig;
+    }
+
+    /**
+     * Calculates the minimal burning configuration, saving its progress to
+     * checkpoint as it goes. If it is interrupted or killed, resume() picks
+     * up where it left off.
+     */
+    public SandpileConfiguration getMinimalBurningConfig(StabilizationCheckpoint checkpoint) throws InterruptedException, IOException {
+        SandpileConfiguration config = reverseFireConfig(getUniformConfig(0));
+        checkpoint.start(StabilizationCheckpoint.Stage.BURNING, getCompressedGraph().fingerprint());
+        checkpoint.save(config);
+        return finishBurning(config, checkpoint);
+    }
+
+    /**
+     * Picks up a calculation from the last checkpoint saved in checkpoint
+     * and finishes it. checkpoint.getStage() tells what was being calculated.
+     * @throws IOException If the checkpoint can't be read, or it was made on
+     * a different graph.
+     */
+    public SandpileConfiguration resume(StabilizationCheckpoint checkpoint) throws InterruptedException, IOException {
+        SandpileConfiguration config = checkpoint.load(getCompressedGraph().fingerprint());
+        switch (checkpoint.getStage()) {
+            case IDENTITY_DOUBLE_MAX:
+                return finishIdentity(config, checkpoint);
+            case IDENTITY:
+                stabilizeInPlace(config, checkpoint);
+                checkpoint.finish();
+                return config;
+            case BURNING:
+                return finishBurning(config, checkpoint);
+            default:
+                stabilizeInPlace(config, checkpoint);
+                checkpoint.finish();
+                return config;
+        }
+    }
+
+    /**
+     * Finishes stabilizing the partly stabilized double max config and does
+     * the second half of the identity calculation.
+     */
+    private SandpileConfiguration finishIdentity(SandpileConfiguration doubleMax, StabilizationCheckpoint checkpoint) throws InterruptedException, IOException {
+        stabilizeInPlace(doubleMax, checkpoint);
+        SandpileConfiguration config = getMaxConfig().times(2).plusEquals(doubleMax.times(-1));
+        checkpoint.start(StabilizationCheckpoint.Stage.IDENTITY, getCompressedGraph().fingerprint());
+        checkpoint.save(config);
+        stabilizeInPlace(config, checkpoint);
+        checkpoint.finish();
+        return config;
+    }
+
+    private SandpileConfiguration finishBurning(SandpileConfiguration config, StabilizationCheckpoint checkpoint) throws InterruptedException, IOException {
+        try {
+            while (!reverseFireDebtsUntil(config, null, checkpoint.nextSave())) {
+                checkpoint.save(config);
+            }
+        } catch (InterruptedException e) {
+            checkpoint.save(config);
+            throw e;
+        }
+        checkpoint.finish();
+        return config;
+    }
+
+    /**
+     * Stabilizes config in place, saving it to checkpoint whenever one is due
+     * and when interrupted.
+     */
+    private void stabilizeInPlace(SandpileConfiguration config, StabilizationCheckpoint checkpoint) throws InterruptedException, IOException {
+        try {
+            while (!stabilizeInPlaceUntil(config, checkpoint.nextSave())) {
+                checkpoint.save(config);
+            }
+        } catch (InterruptedException e) {
+            checkpoint.save(config);
+            throw e;
+        }
+    }
+
+    /**
+     * Stabilizes config in place as stabilizeConfigInPlace() does, but stops
+     * early once System.nanoTime() reaches deadline, leaving config partly
+     * stabilized.
+     * @return false if it stopped early.
+     */
+    private boolean stabilizeInPlaceUntil(SandpileConfiguration config, long deadline) throws InterruptedException {
+        TIntArrayList starters = getUnstables(config);
+        StencilStabilizer stencils = getStencilStabilizer();
+        if (stencils.hasStencils()) {
+            return stencils.stabilizeInPlaceUntil(config, starters, null, deadline);
+        }
+        Iterator<SandpileConfiguration> updater = this.inPlaceParallelUpdaterStartingWith(config, starters, FiringMode.DIVIDE);
+        while (updater.hasNext()) {
+            updater.next();
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,259 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Running totals of what a SandpileController has been doing, so that it is
+ * possible to see where the time goes without a profiler. The controller
+ * records each generation its updater fires (taken from the AvalancheStats
+ * the updater fills in anyway), how long each update() and stabilize()
+ * takes, and how long it waits on its locks. Once registered, everything here
+ * can also be read over JMX.
+ * @author Bryan Head
+ */
+public class SandpileMetrics implements SandpileMetricsMBean {
+
+    // Rates are worked out over windows of at least this many nanoseconds...
+    private static final long RATE_WINDOW = 1000000000L;
+    // ...and count as zero if nothing has happened for this long.
+    private static final long IDLE_TIME = 2 * RATE_WINDOW;
+    private long generations = 0;
+    private long topplings = 0;
+    private long grainsLost = 0;
+    private int lastFrontierSize = 0;
+    private long frontierTotal = 0;
+    // These are recorded every time a lock is taken or an update or
+    // stabilization finishes, so they don't go through the monitor.
+    private final AtomicLong updates = new AtomicLong();
+    private volatile long lastUpdateNanos = 0;
+    private final AtomicLong updateNanos = new AtomicLong();
+    private final AtomicLong stabilizations = new AtomicLong();
+    private volatile long lastStabilizeNanos = 0;
+    private final AtomicLong stabilizeNanos = new AtomicLong();
+    private final AtomicLong configLockWaitNanos = new AtomicLong();
+    private final AtomicLong firingsLockWaitNanos = new AtomicLong();
+    private long windowStart = System.nanoTime();
+    private long windowGenerations = 0;
+    private long windowTopplings = 0;
+    private long lastGenerationTime = 0;
+    private double generationsPerSecond = 0.0;
+    private double topplingsPerSecond = 0.0;
+    private ObjectName registeredName = null;
+
+    /**
+     * Registers this with the platform MBean server, under
+     * org.headb.sandpile:type=SandpileMetrics,id=n, where n is different for
+     * each SandpileMetrics so that several controllers can be registered at
+     * once. If that doesn't work, the metrics are still available in the app.
+     * Does nothing if this is already registered.
+     */
+    public synchronized void register() {
+        if (registeredName != null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName("org.headb.sandpile:type=SandpileMetrics,id=" + System.identityHashCode(this));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            System.err.println("Couldn't register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes this from the platform MBean server, if register() put it there.
+     */
+    public synchronized void unregister() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException e) {
+            System.err.println("Couldn't unregister metrics from JMX: " + e.getMessage());
+        }
+        registeredName = null;
+    }
+
+    /**
+     * Records one generation of firings.
+     * @param topplings The number of firings.
+     * @param frontierSize The number of vertices that fired.
+     * @param grainsLost The amount of sand fired into sinks.
+     */
+    synchronized void recordGeneration(long topplings, int frontierSize, long grainsLost) {
+        generations++;
+        this.topplings += topplings;
+        this.grainsLost += grainsLost;
+        lastFrontierSize = frontierSize;
+        frontierTotal += frontierSize;
+        long now = System.nanoTime();
+        lastGenerationTime = now;
+        long elapsed = now - windowStart;
+        if (elapsed >= RATE_WINDOW) {
+            generationsPerSecond = (generations - windowGenerations) * 1e9 / elapsed;
+            topplingsPerSecond = (this.topplings - windowTopplings) * 1e9 / elapsed;
+            windowStart = now;
+            windowGenerations = generations;
+            windowTopplings = this.topplings;
+        }
+    }
+
+    void recordUpdate(long nanos) {
+        updates.incrementAndGet();
+        lastUpdateNanos = nanos;
+        updateNanos.addAndGet(nanos);
+    }
+
+    void recordStabilization(long nanos) {
+        stabilizations.incrementAndGet();
+        lastStabilizeNanos = nanos;
+        stabilizeNanos.addAndGet(nanos);
+    }
+
+    void recordConfigLockWait(long nanos) {
+        configLockWaitNanos.addAndGet(nanos);
+    }
+
+    void recordFiringsLockWait(long nanos) {
+        firingsLockWaitNanos.addAndGet(nanos);
+    }
+
+    public synchronized long getGenerations() {
+        return generations;
+    }
+
+    public synchronized long getTopplings() {
+        return topplings;
+    }
+
+    public synchronized long getGrainsLost() {
+        return grainsLost;
+    }
+
+    public synchronized double getGenerationsPerSecond() {
+        return isIdle() ? 0.0 : generationsPerSecond;
+    }
+
+    public synchronized double getTopplingsPerSecond() {
+        return isIdle() ? 0.0 : topplingsPerSecond;
+    }
+
+    /**
+     * Returns the number of vertices that fired in the last generation.
+     */
+    public synchronized int getLastFrontierSize() {
+        return lastFrontierSize;
+    }
+
+    public synchronized double getMeanFrontierSize() {
+        return generations == 0 ? 0.0 : (double) frontierTotal / generations;
+    }
+
+    /**
+     * Returns the number of calls to SandpileController.update().
+     */
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    public double getLastUpdateMillis() {
+        return lastUpdateNanos / 1e6;
+    }
+
+    public double getMeanUpdateMillis() {
+        long n = updates.get();
+        return n == 0 ? 0.0 : updateNanos.get() / 1e6 / n;
+    }
+
+    /**
+     * Returns the number of calls to SandpileController.stabilize() (and its
+     * checkpointed and resumed forms) that have finished.
+     */
+    public long getStabilizations() {
+        return stabilizations.get();
+    }
+
+    public double getLastStabilizeMillis() {
+        return lastStabilizeNanos / 1e6;
+    }
+
+    public double getMeanStabilizeMillis() {
+        long n = stabilizations.get();
+        return n == 0 ? 0.0 : stabilizeNanos.get() / 1e6 / n;
+    }
+
+    /**
+     * Returns the total time spent waiting to lock the controller's config.
+     */
+    public double getConfigLockWaitMillis() {
+        return configLockWaitNanos.get() / 1e6;
+    }
+
+    /**
+     * Returns the total time spent waiting to lock the controller's firing
+     * counts.
+     */
+    public double getFiringsLockWaitMillis() {
+        return firingsLockWaitNanos.get() / 1e6;
+    }
+
+    /**
+     * Sets everything back to zero.
+     */
+    public synchronized void reset() {
+        generations = 0;
+        topplings = 0;
+        grainsLost = 0;
+        lastFrontierSize = 0;
+        frontierTotal = 0;
+        updates.set(0);
+        lastUpdateNanos = 0;
+        updateNanos.set(0);
+        stabilizations.set(0);
+        lastStabilizeNanos = 0;
+        stabilizeNanos.set(0);
+        configLockWaitNanos.set(0);
+        firingsLockWaitNanos.set(0);
+        windowStart = System.nanoTime();
+        windowGenerations = 0;
+        windowTopplings = 0;
+        generationsPerSecond = 0.0;
+        topplingsPerSecond = 0.0;
+    }
+
+    private boolean isIdle() {
+        return System.nanoTime() - lastGenerationTime > IDLE_TIME;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+/**
+ * The management interface of SandpileMetrics, as seen through JMX (jconsole
+ * or VisualVM, for instance).
+ * @author Bryan Head
+ */
+public interface SandpileMetricsMBean {
+
+    public long getGenerations();
+
+    public long getTopplings();
+
+    public long getGrainsLost();
+
+    public double getGenerationsPerSecond();
+
+    public double getTopplingsPerSecond();
+
+    public int getLastFrontierSize();
+
+    public double getMeanFrontierSize();
+
+    public long getUpdates();
+
+    public double getLastUpdateMillis();
+
+    public double getMeanUpdateMillis();
+
+    public long getStabilizations();
+
+    public double getLastStabilizeMillis();
+
+    public double getMeanStabilizeMillis();
+
+    public double getConfigLockWaitMillis();
+
+    public double getFiringsLockWaitMillis();
+
+    public void reset();
+}
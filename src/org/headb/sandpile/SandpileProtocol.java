@@ -28,7 +28,11 @@ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
  */
 package org.headb.sandpile;
 
+import java.io.File;
+import java.io.IOException;
+import gnu.trove.list.array.TDoubleArrayList;
 import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
 
 /**
  * Interprets remote string commands for controlling a SandpileController (and
@@ -79,14 +83,15 @@ public class SandpileProtocol {
         } else if (command[0].equals("get_edges")) {
             StringBuilder sb = new StringBuilder();
             boolean needsSpace = false;
+            SandpileGraph graph = sc.getGraph();
             for (int v = 0; v < sc.configSize(); v++) {
-                for (Edge e : sc.getGraph().getOutgoingEdges(v)) {
+                for (int i = 0; i < graph.numOutgoingEdges(v); i++) {
                     if (needsSpace) {
                         sb.append(" ");
                     } else {
                         needsSpace = true;
                     }
-                    sb.append(e.source() + "," + e.dest() + "," + e.wt());
+                    sb.append(v).append(',').append(graph.outgoingDestQuick(v, i)).append(',').append(graph.outgoingWtQuick(v, i));
                 }
             }
             output = sb.toString();
@@ -119,21 +124,27 @@ public class SandpileProtocol {
             int vertex = Integer.valueOf(command[1]);
             output = String.valueOf(sc.getGraph().isSink(vertex));
         } else if (command[0].equals("add_config")) {
-            SandpileConfiguration config = new SandpileConfiguration();
-            String[] confRep = command[1].split(",");
-            for (int v = 0; v < confRep.length; v++) {
-                config.add(Integer.valueOf(confRep[v]));
+            WideSandpileConfiguration config = parseWideConfig(command[1]);
+            if (config.fitsInInt() && !sc.isConfigWide()) {
+                sc.addConfig(config.toNarrow());
+            } else {
+                sc.addWideConfig(config);
             }
-            sc.addConfig(config);
         } else if (command[0].equals("set_config")) {
-            String[] confRep = command[1].split(",");
-            SandpileConfiguration config = new SandpileConfiguration();
-            for (int v = 0; v < confRep.length; v++) {
-                config.add(Integer.valueOf(confRep[v]));
+            WideSandpileConfiguration config = parseWideConfig(command[1]);
+            if (config.fitsInInt()) {
+                sc.setConfig(config.toNarrow());
+            } else {
+                sc.setWideConfig(config);
             }
-            sc.setConfig(config);
         } else if (command[0].equals("get_config")) {
-            output = configToString(sc.getConfig());
+            if (sc.isConfigWide()) {
+                output = formatSeq(sc.getWideConfig());
+            } else {
+                output = configToString(sc.getConfig());
+            }
+        } else if (command[0].equals("is_config_wide")) {
+            output = String.valueOf(sc.isConfigWide());
         } else if (command[0].equals("get_num_unstables")) {
             output = String.valueOf(sc.getGraph().getUnstables(sc.getConfig()).size());
         } else if (command[0].equals("get_unstables")) {
@@ -148,6 +159,75 @@ public class SandpileProtocol {
             output = configToString(sc.getConfigByName(command[1]));
         } else if (command[0].equals("add_random_sand")) {
             sc.addSandToRandom(sc.getGraph().getNonSinks(), Integer.valueOf(command[1]));
+        } else if (command[0].equals("add_weighted_random_sand")) {
+            // One weight per vertex; vertices with no weight get no sand.
+            String[] weightRep = command[2].split(",");
+            TIntArrayList vertices = new TIntArrayList();
+            TDoubleArrayList weights = new TDoubleArrayList();
+            for (int v = 0; v < weightRep.length; v++) {
+                double weight = Double.valueOf(weightRep[v]);
+                if (weight > 0) {
+                    vertices.add(v);
+                    weights.add(weight);
+                }
+            }
+            sc.addSandToRandom(vertices, weights.toArray(), Integer.valueOf(command[1]));
+        } else if (command[0].equals("slow_drive")) {
+            SlowDriver.LogFormat format = SlowDriver.LogFormat.CSV;
+            if (command.length > 3) {
+                format = SlowDriver.LogFormat.valueOf(command[3].toUpperCase());
+            }
+            try {
+                sc.slowDrive(Integer.valueOf(command[1]), new File(command[2]), format);
+            } catch (IOException e) {
+                System.err.println("Caught IOException while writing slow drive log: " + e.getMessage());
+            } catch (InterruptedException e) {
+                System.err.println("Slow drive interrupted");
+            }
+        } else if (command[0].equals("stabilize_with_checkpoints")) {
+            try {
+                sc.stabilize(new File(command[1]), getCheckpointInterval(command));
+            } catch (IOException e) {
+                System.err.println("Caught IOException while saving checkpoint: " + e.getMessage());
+            } catch (InterruptedException e) {
+                System.err.println("Stabilization interrupted");
+            }
+        } else if (command[0].equals("set_to_identity_with_checkpoints")) {
+            try {
+                sc.setToIdentity(new File(command[1]), getCheckpointInterval(command));
+            } catch (IOException e) {
+                System.err.println("Caught IOException while saving checkpoint: " + e.getMessage());
+            } catch (InterruptedException e) {
+                System.err.println("Identity calculation interrupted");
+            }
+        } else if (command[0].equals("set_to_burning_with_checkpoints")) {
+            try {
+                sc.setToBurningConfig(new File(command[1]), getCheckpointInterval(command));
+            } catch (IOException e) {
+                System.err.println("Caught IOException while saving checkpoint: " + e.getMessage());
+            } catch (InterruptedException e) {
+                System.err.println("Burning config calculation interrupted");
+            }
+        } else if (command[0].equals("resume")) {
+            try {
+                sc.resume(new File(command[1]), getCheckpointInterval(command));
+            } catch (IOException e) {
+                System.err.println("Caught IOException while resuming from checkpoint: " + e.getMessage());
+            } catch (InterruptedException e) {
+                System.err.println("Resumed calculation interrupted");
+            }
+        } else if (command[0].equals("find_orbit")) {
+            try {
+                OrbitFinder.Orbit orbit = sc.findOrbit(Integer.valueOf(command[1]));
+                output = orbit == null ? "none" : orbit.getTransientLength() + "," + orbit.getPeriod();
+            } catch (InterruptedException e) {
+                System.err.println("Orbit search interrupted");
+            }
+        } else if (command[0].equals("get_orbit_start")) {
+            OrbitFinder.Orbit orbit = sc.getOrbit();
+            output = orbit == null ? "none" : configToString(orbit.getStart());
+        } else if (command[0].equals("set_random_seed")) {
+            sc.setRandomSeed(Long.valueOf(command[1]));
         } else if (command[0].equals("set_to_max_stable")) {
             sc.setToMaxStableConfig(Integer.valueOf(command[1]));
         } else if (command[0].equals("add_max_stable")) {
@@ -200,12 +280,90 @@ public class SandpileProtocol {
             output = formatSeq(sc.getFirings());
         } else if (command[0].equals("reset_firings")) {
             sc.resetFirings();
+        } else if (command[0].equals("set_firing_mode")) {
+            sc.setFiringMode(SandpileGraph.FiringMode.valueOf(command[1].toUpperCase()));
+        } else if (command[0].equals("get_firing_mode")) {
+            output = sc.getFiringMode().toString().toLowerCase();
+        } else if (command[0].equals("set_update_threads")) {
+            sc.setUpdateThreads(Integer.valueOf(command[1]));
+        } else if (command[0].equals("set_stabilization_strategy")) {
+            sc.setStabilizationStrategy(SandpileGraph.StabilizationStrategy.valueOf(command[1].toUpperCase()));
+        } else if (command[0].equals("get_stabilization_strategy")) {
+            output = sc.getStabilizationStrategy().toString().toLowerCase();
+        } else if (command[0].equals("get_stabilization_times")) {
+            output = formatTimes(sc.getStabilizationTimes());
+        } else if (command[0].equals("is_recurrent")) {
+            try {
+                if (command.length > 1) {
+                    String[] confRep = command[1].split(",");
+                    SandpileConfiguration config = new SandpileConfiguration();
+                    for (int v = 0; v < confRep.length; v++) {
+                        config.add(Integer.valueOf(confRep[v]));
+                    }
+                    output = String.valueOf(sc.getGraph().isRecurrent(config));
+                } else {
+                    output = String.valueOf(sc.isRecurrent());
+                }
+            } catch (InterruptedException e) {
+                System.err.println("Recurrence check interrupted");
+            }
+        } else if (command[0].equals("get_avalanche")) {
+            AvalancheStats stats = sc.getAvalancheStats();
+            output = stats.getTopplings() + "," + stats.getArea() + "," + stats.getDuration() + "," + stats.getGrainsLost();
+        } else if (command[0].equals("get_metrics")) {
+            SandpileMetrics metrics = sc.getMetrics();
+            output = metrics.getGenerations() + "," + metrics.getTopplings() + "," + metrics.getGrainsLost() + ","
+                    + metrics.getGenerationsPerSecond() + "," + metrics.getTopplingsPerSecond() + ","
+                    + metrics.getLastFrontierSize() + "," + metrics.getMeanFrontierSize() + ","
+                    + metrics.getMeanUpdateMillis() + "," + metrics.getConfigLockWaitMillis() + ","
+                    + metrics.getFiringsLockWaitMillis() + "," + metrics.getStabilizations() + ","
+                    + metrics.getMeanStabilizeMillis();
+        } else if (command[0].equals("reset_metrics")) {
+            sc.getMetrics().reset();
+        } else if (command[0].equals("get_identity_time")) {
+            output = String.valueOf(sc.getIdentityTime());
+        } else if (command[0].equals("time_identity")) {
+            try {
+                output = formatTimes(sc.timeIdentityMethods());
+            } catch (InterruptedException e) {
+                System.err.println("Identity calculation interrupted");
+            }
         } else {
             System.err.println("Could not understand message: " + input);
         }
         return output;
     }
 
+    // Configs are read as longs so that ones too big for ints can be used.
+    private WideSandpileConfiguration parseWideConfig(String rep) {
+        String[] confRep = rep.split(",");
+        WideSandpileConfiguration config = new WideSandpileConfiguration();
+        for (int v = 0; v < confRep.length; v++) {
+            config.add(Long.valueOf(confRep[v]));
+        }
+        return config;
+    }
+
+    // Checkpoint commands take the number of seconds between checkpoints as an
+    // optional last argument, defaulting to ten minutes.
+    private long getCheckpointInterval(String[] command) {
+        if (command.length > 2) {
+            return Long.valueOf(command[2]) * 1000;
+        }
+        return 600000;
+    }
+
+    private String formatTimes(double[] times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times.length; i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append(times[i]);
+        }
+        return sb.toString();
+    }
+
     public String configToString(SandpileConfiguration config) {
         return formatSeq(config);
     }
@@ -237,4 +395,18 @@ public class SandpileProtocol {
         }
         return sb.toString();
     }
+
+    public String formatSeq(TLongArrayList seq) {
+        StringBuilder sb = new StringBuilder();
+        boolean needsComma = false;
+        for (int i = 0; i < seq.size(); i++) {
+            if (needsComma) {
+                sb.append(",");
+            } else {
+                needsComma = true;
+            }
+            sb.append(String.valueOf(seq.get(i)));
+        }
+        return sb.toString();
+    }
 }
@@ -58,6 +58,12 @@ public class Sandpiles extends javax.swing.JFrame {
         prefs = SandpilePreferences.getPreferences();
         enactPreferences();
         updateBackgroundColorLabel();
+        addWindowListener(new java.awt.event.WindowAdapter() {
+
+            public void windowClosing(java.awt.event.WindowEvent evt) {
+                sandpilesIP.getSandpileController().shutdown();
+            }
+        });
     }
 
     /** This method is called from within the constructor to
@@ -501,6 +507,7 @@ public class Sandpiles extends javax.swing.JFrame {
     }// </editor-fold>//GEN-END:initComponents
 
 	private void quitMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_quitMenuItemActionPerformed
+        sandpilesIP.getSandpileController().shutdown();
         System.exit(0);
 	}//GEN-LAST:event_quitMenuItemActionPerformed
 
@@ -142,7 +142,20 @@ public class SandpilesInteractionPanel extends javax.swing.JPanel implements Cli
 
         displayUPSTimer = new Timer(250, new ActionListener() {
             public void actionPerformed(ActionEvent evt){
-                upsLabel.setText(" MS/Update: " + sandpileController.getUPS() + "; ");
+                SandpileMetrics metrics = sandpileController.getMetrics();
+                upsLabel.setText(" MS/Update: " + sandpileController.getUPS()
+                        + "; Gens/s: " + Math.round(metrics.getGenerationsPerSecond())
+                        + "; Topplings/s: " + Math.round(metrics.getTopplingsPerSecond()) + "; ");
+                upsLabel.setToolTipText("<html>Generations: " + metrics.getGenerations()
+                        + "<br>Topplings: " + metrics.getTopplings()
+                        + "<br>Grains lost to sinks: " + metrics.getGrainsLost()
+                        + "<br>Frontier size: " + metrics.getLastFrontierSize()
+                        + " (mean " + Math.round(metrics.getMeanFrontierSize()) + ")"
+                        + "<br>MS per update: " + metrics.getLastUpdateMillis()
+                        + " (mean " + metrics.getMeanUpdateMillis() + ")"
+                        + "<br>MS waiting on config lock: " + Math.round(metrics.getConfigLockWaitMillis())
+                        + "<br>MS waiting on firings lock: " + Math.round(metrics.getFiringsLockWaitMillis())
+                        + "</html>");
             }
         });
 
@@ -272,11 +285,12 @@ public class SandpilesInteractionPanel extends javax.swing.JPanel implements Cli
 			float y = sandpileController.getVertexY(v)-drawer.getOriginY();
 			locationData.addRow(x,y);
 			configData.add(sandpileController.getSand(v));
-			for(Edge e : sandpileController.getGraph().getOutgoingEdges(v)){
-				int w = e.dest();
+			SandpileGraph graph = sandpileController.getGraph();
+			for(int j=0; j<graph.numOutgoingEdges(v); j++){
+				int w = graph.outgoingDestQuick(v, j);
 				int destVert = vertices.indexOf(w);
 				if(destVert>=0){
-					edgeData.add(vert,destVert,sandpileController.getGraph().weight(v, w));
+					edgeData.add(vert,destVert,graph.outgoingWtQuick(v, j));
 				}
 			}
 			vert++;
@@ -2894,6 +2908,10 @@ public class SandpilesInteractionPanel extends javax.swing.JPanel implements Cli
 		updateSelectedInfo();
 	}
 
+	public void onAvalanche(AvalancheStats stats) {
+		// Avalanche statistics are only reported through the protocol for now.
+	}
+
 	public BufferedImage getCanvasShot(float scale){
         GLJPanel p = (GLJPanel)this.currentDrawer.getCanvas();
         GraphicsConfiguration gc = p.getGraphicsConfiguration();
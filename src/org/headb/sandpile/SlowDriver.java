@@ -0,0 +1,201 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Runs a slowly driven sandpile: drops one grain on a random vertex, lets the
+ * avalanche it sets off run to the end, writes down the avalanche and
+ * repeats. The generations of an avalanche are the same as with
+ * SandpileGraph.inPlaceParallelUpdater() in SINGLE mode, but nothing is
+ * allocated and no listeners are called between grains, so small avalanches
+ * cost next to nothing.
+ *
+ * Each avalanche is one record in the log. In CSV format, the log starts with
+ * a header line and each record is a line of
+ * "grain,vertex,topplings,area,duration,grains_lost". In BINARY format, each
+ * record is the vertex (int), topplings (long), area (int), duration (int) and
+ * grains lost (long), big endian, 28 bytes in all.
+ * @author Bryan Head
+ */
+public class SlowDriver {
+
+    public enum LogFormat {
+
+        CSV, BINARY
+    }
+    private CompressedGraph csr;
+    private SandpileConfiguration config;
+    private TIntArrayList vertices;
+    private SplitMixRandom random;
+    private TIntArrayList current = new TIntArrayList();
+    private TIntArrayList next = new TIntArrayList();
+    private boolean[] added;
+    // The avalanche each vertex last fired in, for counting the area without
+    // clearing anything between avalanches.
+    private int[] lastToppled;
+    private int avalanche = 0;
+    private long topplings;
+    private int area;
+    private int duration;
+    private long grainsLost;
+
+    /**
+     * @param graph The graph to drive.
+     * @param config The config to drop sand on. It is modified in place.
+     * @param vertices The vertices the grains may land on.
+     * @param random Picks where each grain lands.
+     */
+    public SlowDriver(SandpileGraph graph, SandpileConfiguration config, TIntArrayList vertices, SplitMixRandom random) {
+        this.csr = graph.getCompressedGraph();
+        this.config = config;
+        this.vertices = vertices;
+        this.random = random;
+        added = new boolean[csr.numVertices];
+        lastToppled = new int[csr.numVertices];
+    }
+
+    /**
+     * Drops the given number of grains one at a time, stabilizing after
+     * each, and writes a record of every avalanche to log. If the config
+     * isn't stable to begin with, it is stabilized first without writing
+     * anything. log is flushed but not closed.
+     */
+    public void run(int grains, OutputStream log, LogFormat format) throws IOException, InterruptedException {
+        if (vertices.isEmpty()) {
+            return;
+        }
+        int[] data = config.getData();
+        for (int v = 0; v < csr.numVertices; v++) {
+            if (csr.degree[v] > 0 && data[v] >= csr.degree[v]) {
+                added[v] = true;
+                current.add(v);
+            }
+        }
+        relax(data);
+        DataOutputStream binary = null;
+        PrintWriter csv = null;
+        if (format == LogFormat.BINARY) {
+            binary = new DataOutputStream(new BufferedOutputStream(log));
+        } else {
+            csv = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(log)));
+            csv.println("grain,vertex,topplings,area,duration,grains_lost");
+        }
+        for (int grain = 0; grain < grains; grain++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            int v = vertices.getQuick(random.nextInt(vertices.size()));
+            data[v]++;
+            if (csr.degree[v] > 0 && data[v] >= csr.degree[v]) {
+                added[v] = true;
+                current.add(v);
+            }
+            relax(data);
+            if (binary != null) {
+                binary.writeInt(v);
+                binary.writeLong(topplings);
+                binary.writeInt(area);
+                binary.writeInt(duration);
+                binary.writeLong(grainsLost);
+            } else {
+                csv.println(grain + "," + v + "," + topplings + "," + area + "," + duration + "," + grainsLost);
+            }
+        }
+        if (binary != null) {
+            binary.flush();
+        } else {
+            csv.flush();
+            if (csv.checkError()) {
+                throw new IOException("Unable to write the slow drive log.");
+            }
+        }
+    }
+
+    /**
+     * Fires the vertices in current, and whatever they make unstable, a
+     * generation at a time until nothing is unstable.
+     */
+    private void relax(int[] data) throws InterruptedException {
+        int[] rowStart = csr.rowStart;
+        int[] dests = csr.dest;
+        int[] wts = csr.wt;
+        int[] degrees = csr.degree;
+        avalanche++;
+        topplings = 0;
+        area = 0;
+        duration = 0;
+        grainsLost = 0;
+        while (!current.isEmpty()) {
+            if ((duration & 0xff) == 0xff && Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            int size = current.size();
+            for (int i = 0; i < size; i++) {
+                int v = current.getQuick(i);
+                added[v] = false;
+                if (lastToppled[v] != avalanche) {
+                    lastToppled[v] = avalanche;
+                    area++;
+                }
+                int end = rowStart[v + 1];
+                for (int k = rowStart[v]; k < end; k++) {
+                    int dest = dests[k];
+                    data[dest] += wts[k];
+                    int degree = degrees[dest];
+                    if (degree == 0) {
+                        grainsLost += wts[k];
+                    } else if (!added[dest] && data[dest] >= degree) {
+                        added[dest] = true;
+                        next.add(dest);
+                    }
+                }
+                int degree = degrees[v];
+                data[v] -= degree;
+                if (data[v] >= degree) {
+                    added[v] = true;
+                    next.add(v);
+                }
+            }
+            topplings += size;
+            duration++;
+            TIntArrayList swap = current;
+            current = next;
+            next = swap;
+            next.resetQuick();
+        }
+    }
+}
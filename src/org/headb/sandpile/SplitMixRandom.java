@@ -0,0 +1,85 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+/**
+ * A small, fast random number generator using the SplitMix64 algorithm. The
+ * same seed always gives the same numbers, and split() gives an independent
+ * generator, so separate streams of drops can be reproduced separately.
+ * @author Bryan Head
+ */
+public class SplitMixRandom {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private long seed;
+
+    public SplitMixRandom(long seed) {
+        this.seed = seed;
+    }
+
+    public long nextLong() {
+        seed += GOLDEN_GAMMA;
+        long z = seed;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Returns a number from 0 (inclusive) to bound (exclusive), each equally
+     * likely.
+     */
+    public int nextInt(int bound) {
+        if (bound <= 0) {
+            throw new IllegalArgumentException("bound must be positive");
+        }
+        // Throw away the top end of the range that doesn't divide evenly.
+        long limit = (1L << 31) - (1L << 31) % bound;
+        while (true) {
+            long r = nextLong() >>> 33;
+            if (r < limit) {
+                return (int) (r % bound);
+            }
+        }
+    }
+
+    /**
+     * Returns a number from 0 (inclusive) to 1 (exclusive).
+     */
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Returns a new generator whose numbers are independent of this one's.
+     */
+    public SplitMixRandom split() {
+        return new SplitMixRandom(nextLong());
+    }
+}
@@ -0,0 +1,189 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Saves the progress of a long calculation on a SandpileGraph to a file, so
+ * that it can be picked up again with SandpileGraph.resume() after being
+ * interrupted or killed. The partly stabilized config is saved every so often
+ * and whenever the calculation is interrupted. Since sand can be fired in any
+ * order, the config is all that is needed: whatever is still unstable in it
+ * is exactly what was left to do. The file is deleted once the calculation
+ * finishes.
+ * @author Bryan Head
+ */
+public class StabilizationCheckpoint {
+
+    public static final int MAGIC = 0x8953434b;
+
+    /**
+     * What the calculation was doing when the checkpoint was saved.
+     */
+    public enum Stage {
+
+        /**
+         * Stabilizing a config with SandpileGraph.stabilizeConfig().
+         */
+        STABILIZE,
+        /**
+         * Stabilizing twice the max config, the first half of
+         * SandpileGraph.getIdentityConfig().
+         */
+        IDENTITY_DOUBLE_MAX,
+        /**
+         * Stabilizing twice the max config minus the result of the first
+         * half, the second half of SandpileGraph.getIdentityConfig().
+         */
+        IDENTITY,
+        /**
+         * Reverse firing vertices in debt, as in
+         * SandpileGraph.getMinimalBurningConfig().
+         */
+        BURNING
+    }
+    private File file;
+    private long interval;
+    private Stage stage = null;
+    private long fingerprint;
+    private long lastSave;
+
+    /**
+     * @param file Where to save the checkpoints.
+     * @param intervalMillis How often to save them.
+     */
+    public StabilizationCheckpoint(File file, long intervalMillis) {
+        this.file = file;
+        this.interval = intervalMillis * 1000000L;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns whether there is a checkpoint in the file to resume from.
+     */
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Returns the stage of the calculation last saved or loaded, or null if
+     * there hasn't been one.
+     */
+    public Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * Starts checkpointing a new stage of a calculation on the graph with the
+     * given fingerprint.
+     */
+    void start(Stage stage, long fingerprint) {
+        this.stage = stage;
+        this.fingerprint = fingerprint;
+        this.lastSave = System.nanoTime();
+    }
+
+    /**
+     * Returns the System.nanoTime() at which the next checkpoint is due.
+     */
+    long nextSave() {
+        return lastSave + interval;
+    }
+
+    /**
+     * Saves config as the progress of the current stage. The checkpoint is
+     * written to a temporary file first, so the last one is never lost half
+     * way through.
+     */
+    void save(SandpileConfiguration config) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeUTF(stage.name());
+            out.writeLong(fingerprint);
+            new PackedSandpileConfiguration(config).write(out);
+        } finally {
+            out.close();
+        }
+        file.delete();
+        if (!temp.renameTo(file)) {
+            throw new IOException("Couldn't move checkpoint to " + file.getPath());
+        }
+        lastSave = System.nanoTime();
+    }
+
+    /**
+     * Reads the checkpoint from the file, setting the stage.
+     * @param fingerprint The fingerprint of the graph it will be used on.
+     * @return The partly stabilized config.
+     * @throws IOException If the file isn't a checkpoint or is for another
+     * graph.
+     */
+    SandpileConfiguration load(long fingerprint) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a checkpoint: " + file.getName());
+            }
+            Stage savedStage;
+            try {
+                savedStage = Stage.valueOf(in.readUTF());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Unknown checkpoint stage in " + file.getName());
+            }
+            if (in.readLong() != fingerprint) {
+                throw new IOException("Checkpoint " + file.getName() + " was made on a different graph");
+            }
+            SandpileConfiguration config = PackedSandpileConfiguration.read(in).unpack();
+            start(savedStage, fingerprint);
+            return config;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Deletes the checkpoint once the calculation is done.
+     */
+    void finish() {
+        file.delete();
+    }
+}
@@ -0,0 +1,305 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+import java.util.ArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.stack.array.TIntArrayStack;
+
+/**
+ * Stabilizes configurations on graphs in which long runs of consecutive
+ * vertices share the same EdgeOffsetList, as the interior rows of the grids
+ * made by SandpileController do. Each such run is a stencil: every vertex in it
+ * sends the same weights to the same offsets. Stencils are swept directly over
+ * the config's backing array with the offsets and degree held in locals, so
+ * the inner loop never touches the graph. All other vertices are handled one
+ * at a time with a work list.
+ *
+ * Long runs are cut into tiles of at most TILE_LENGTH vertices, and a tile is
+ * only swept when sand lands on one of its unstable vertices. Late in an
+ * avalanche only a few vertices are still firing, so this keeps each sweep
+ * small and in cache rather than rescanning whole rows.
+ *
+ * Vertices are fired sand/degree times whenever they are visited. Since the
+ * final configuration doesn't depend on the order of firings, the result is
+ * the same as SandpileGraph.stabilizeConfig() gives.
+ * @author Bryan Head
+ */
+public class StencilStabilizer {
+
+    /**
+     * Runs shorter than this aren't worth sweeping separately.
+     */
+    public static final int MIN_STENCIL_LENGTH = 16;
+    /**
+     * Runs longer than this are split into tiles of about the same length,
+     * each of which is a stencil of its own.
+     */
+    public static final int TILE_LENGTH = 64;
+
+    private static class Stencil {
+
+        int start, end, degree;
+        int[] offsets, weights;
+        // The largest offset that can land back inside the stencil.
+        int reach;
+    }
+    private SandpileGraph graph;
+    // Vertices that aren't in a stencil are fired off of this.
+    private CompressedGraph csr;
+    private Stencil[] stencils;
+    // The index of the stencil containing each vertex or -1.
+    private int[] stencilOf;
+
+    public StencilStabilizer(SandpileGraph graph) {
+        this.graph = graph;
+        this.csr = graph.getCompressedGraph();
+        int n = graph.numVertices();
+        stencilOf = new int[n];
+        ArrayList<Stencil> found = new ArrayList<Stencil>();
+        int v = 0;
+        while (v < n) {
+            EdgeOffsetList offsetList = graph.getOffsetList(v);
+            int end = v + 1;
+            // Identical offset lists are shared, so comparing references is
+            // enough here.
+            while (end < n && graph.getOffsetList(end) == offsetList) {
+                end++;
+            }
+            if (end - v >= MIN_STENCIL_LENGTH && offsetList.degree() > 0) {
+                // Long runs are split into tiles of about the same length.
+                int tiles = (end - v + TILE_LENGTH - 1) / TILE_LENGTH;
+                for (int t = 0; t < tiles; t++) {
+                    int tileStart = v + (int) ((long) (end - v) * t / tiles);
+                    int tileEnd = v + (int) ((long) (end - v) * (t + 1) / tiles);
+                    Stencil stencil = new Stencil();
+                    stencil.start = tileStart;
+                    stencil.end = tileEnd;
+                    stencil.degree = offsetList.degree();
+                    stencil.offsets = new int[offsetList.size()];
+                    stencil.weights = new int[offsetList.size()];
+                    for (int k = 0; k < offsetList.size(); k++) {
+                        stencil.offsets[k] = offsetList.destOffsetQuick(k);
+                        stencil.weights[k] = offsetList.wtQuick(k);
+                        int distance = Math.abs(stencil.offsets[k]);
+                        if (distance < tileEnd - tileStart) {
+                            stencil.reach = Math.max(stencil.reach, distance);
+                        }
+                    }
+                    for (int w = tileStart; w < tileEnd; w++) {
+                        stencilOf[w] = found.size();
+                    }
+                    found.add(stencil);
+                }
+            } else {
+                for (int w = v; w < end; w++) {
+                    stencilOf[w] = -1;
+                }
+            }
+            v = end;
+        }
+        stencils = found.toArray(new Stencil[found.size()]);
+    }
+
+    /**
+     * Returns true if any stencils were found in the graph.
+     */
+    public boolean hasStencils() {
+        return stencils.length > 0;
+    }
+
+    /**
+     * Stabilizes config in place. Only the vertices in starters (and the ones
+     * they make unstable) are considered, as with
+     * SandpileGraph.stabilizeConfigInPlaceStartingWith().
+     * WARNING: If the graph does not have a global sink, this function may not end.
+     */
+    public SandpileConfiguration stabilizeInPlace(SandpileConfiguration config, TIntArrayList starters) throws InterruptedException {
+        return stabilizeInPlace(config, starters, null);
+    }
+
+    /**
+     * Does the same thing as stabilizeInPlace(config, starters), but also adds
+     * the number of times each vertex fires to odometer, unless it is null.
+     */
+    public SandpileConfiguration stabilizeInPlace(SandpileConfiguration config, TIntArrayList starters, long[] odometer) throws InterruptedException {
+        stabilizeInPlaceUntil(config, starters, odometer, Long.MAX_VALUE);
+        return config;
+    }
+
+    /**
+     * Does the same thing as stabilizeInPlace(config, starters, odometer), but
+     * stops early once System.nanoTime() reaches deadline. config is left
+     * partly stabilized; the vertices that are still unstable in it are what
+     * is left to do.
+     * @param deadline Long.MAX_VALUE for no deadline.
+     * @return false if it stopped early.
+     */
+    boolean stabilizeInPlaceUntil(SandpileConfiguration config, TIntArrayList starters, long[] odometer, long deadline) throws InterruptedException {
+        int[] data = config.getData();
+        boolean[] added = new boolean[graph.numVertices()];
+        boolean[] dirty = new boolean[stencils.length];
+        TIntArrayStack unstables = new TIntArrayStack();
+        TIntArrayList dirtyStencils = new TIntArrayList();
+        for (int i = 0; i < starters.size(); i++) {
+            touch(data, starters.get(i), added, unstables, dirty, dirtyStencils);
+        }
+        int nextDirty = 0;
+        while (unstables.size() > 0 || nextDirty < dirtyStencils.size()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            while (unstables.size() > 0) {
+                int v = unstables.pop();
+                added[v] = false;
+                int degree = csr.degree[v];
+                int times = data[v] / degree;
+                data[v] -= degree * times;
+                if (odometer != null) {
+                    odometer[v] += times;
+                }
+                int edgesEnd = csr.rowStart[v + 1];
+                for (int k = csr.rowStart[v]; k < edgesEnd; k++) {
+                    int dest = csr.dest[k];
+                    data[dest] += csr.wt[k] * times;
+                    touch(data, dest, added, unstables, dirty, dirtyStencils);
+                }
+            }
+            if (nextDirty < dirtyStencils.size()) {
+                int i = dirtyStencils.get(nextDirty);
+                nextDirty++;
+                // Keep the list of dirty stencils from growing forever.
+                if (nextDirty == dirtyStencils.size()) {
+                    dirtyStencils.resetQuick();
+                    nextDirty = 0;
+                }
+                dirty[i] = false;
+                Stencil stencil = stencils[i];
+                long fired = sweep(data, stencil, odometer);
+                if (fired >= 0) {
+                    touchOutside(data, stencil, (int) (fired >>> 32), (int) fired, added, unstables, dirty, dirtyStencils);
+                }
+            }
+            if (deadline != Long.MAX_VALUE && System.nanoTime() >= deadline) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fires every unstable vertex in the stencil until the whole stencil is
+     * stable. Sand fired out of the stencil is simply dropped on the
+     * neighboring vertices; touchOutside() deals with them afterwards.
+     * @return -1 if nothing fired. Otherwise, the first vertex that fired in
+     * the upper 32 bits and the last in the lower 32 bits.
+     */
+    private static long sweep(int[] data, Stencil stencil, long[] odometer) {
+        final int degree = stencil.degree;
+        final int[] offsets = stencil.offsets;
+        final int[] weights = stencil.weights;
+        final int s = offsets.length;
+        int firstFiredAny = Integer.MAX_VALUE;
+        int lastFiredAny = -1;
+        // Only the part of the stencil near something that fired in the last
+        // pass can have become unstable, so each pass shrinks to that.
+        int lo = stencil.start;
+        int hi = stencil.end;
+        while (lo < hi) {
+            int firstFired = hi;
+            int lastFired = lo - 1;
+            for (int v = lo; v < hi; v++) {
+                int sand = data[v];
+                if (sand >= degree) {
+                    int times = sand / degree;
+                    data[v] = sand - degree * times;
+                    for (int k = 0; k < s; k++) {
+                        data[v + offsets[k]] += weights[k] * times;
+                    }
+                    if (odometer != null) {
+                        odometer[v] += times;
+                    }
+                    if (firstFired == hi) {
+                        firstFired = v;
+                    }
+                    lastFired = v;
+                }
+            }
+            if (lastFired < firstFired) {
+                break;
+            }
+            firstFiredAny = Math.min(firstFiredAny, firstFired);
+            lastFiredAny = Math.max(lastFiredAny, lastFired);
+            lo = Math.max(stencil.start, firstFired - stencil.reach);
+            hi = Math.min(stencil.end, lastFired + stencil.reach + 1);
+        }
+        if (lastFiredAny < 0) {
+            return -1;
+        }
+        return ((long) firstFiredAny << 32) | lastFiredAny;
+    }
+
+    /**
+     * Checks the vertices outside of the stencil that the vertices from
+     * first to last send sand to.
+     */
+    private void touchOutside(int[] data, Stencil stencil, int first, int last, boolean[] added, TIntArrayStack unstables, boolean[] dirty, TIntArrayList dirtyStencils) {
+        final int start = stencil.start;
+        final int end = stencil.end;
+        final int[] offsets = stencil.offsets;
+        for (int v = first; v <= last; v++) {
+            for (int k = 0; k < offsets.length; k++) {
+                int dest = v + offsets[k];
+                if (dest < start || dest >= end) {
+                    touch(data, dest, added, unstables, dirty, dirtyStencils);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues up v, or the stencil containing it, if v is unstable.
+     */
+    private void touch(int[] data, int v, boolean[] added, TIntArrayStack unstables, boolean[] dirty, TIntArrayList dirtyStencils) {
+        int degree = csr.degree[v];
+        if (degree == 0 || data[v] < degree) {
+            return;
+        }
+        int i = stencilOf[v];
+        if (i >= 0) {
+            if (!dirty[i]) {
+                dirty[i] = true;
+                dirtyStencils.add(i);
+            }
+        } else if (!added[v]) {
+            added[v] = true;
+            unstables.push(v);
+        }
+    }
+}
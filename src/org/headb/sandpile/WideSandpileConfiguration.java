@@ -0,0 +1,150 @@
+/*
+Copyright (c) 2008-2009 Bryan Head
+All Rights Reserved
+
+[This software is released under the "MIT License"]
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated
+documentation files (the "Software"), to deal in the
+Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute,
+sublicense, and/or sell copies of the Software, and to
+permit persons to whom the Software is furnished to do so,
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall
+be included in all copies or substantial portions of the
+Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY
+KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS
+OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.headb.sandpile;
+
+import gnu.trove.list.array.TLongArrayList;
+
+/**
+ * A SandpileConfiguration that counts sand with longs, for configurations
+ * with more sand on a vertex than an int can hold, such as sinks after a long
+ * run or a single pile of more than 2^31 grains. SandpileGraph can stabilize
+ * and update these directly. Since ints are faster, everything else works
+ * with SandpileConfiguration; use fitsInInt() and toNarrow() to switch back.
+ * @author Bryan Head
+ */
+public class WideSandpileConfiguration extends TLongArrayList {
+
+    public WideSandpileConfiguration() {
+        super();
+    }
+
+    public WideSandpileConfiguration(int size) {
+        super(size);
+    }
+
+    public WideSandpileConfiguration(WideSandpileConfiguration other) {
+        super(other.toArray());
+    }
+
+    public WideSandpileConfiguration(SandpileConfiguration other) {
+        super(other.size());
+        int n = other.size();
+        for (int i = 0; i < n; i++) {
+            add(other.getQuick(i));
+        }
+    }
+
+    public WideSandpileConfiguration plus(WideSandpileConfiguration other) {
+        assert this.size() == other.size() : "Tried to add configurations of different size";
+        WideSandpileConfiguration result = new WideSandpileConfiguration(this.size());
+        for (int i = 0; i < this.size(); i++) {
+            result.add(this.getQuick(i) + other.getQuick(i));
+        }
+        return result;
+    }
+
+    public WideSandpileConfiguration plus(SandpileConfiguration other) {
+        assert this.size() == other.size() : "Tried to add configurations of different size";
+        WideSandpileConfiguration result = new WideSandpileConfiguration(this.size());
+        for (int i = 0; i < this.size(); i++) {
+            result.add(this.getQuick(i) + other.getQuick(i));
+        }
+        return result;
+    }
+
+    public WideSandpileConfiguration times(long scalar) {
+        WideSandpileConfiguration result = new WideSandpileConfiguration(this.size());
+        for (int i = 0; i < this.size(); i++) {
+            result.add(this.getQuick(i) * scalar);
+        }
+        return result;
+    }
+
+    public WideSandpileConfiguration plusEquals(WideSandpileConfiguration other) {
+        assert this.size() == other.size() : "Tried to add configurations of different size";
+        for (int i = 0; i < this.size(); i++) {
+            increaseQuick(i, other.getQuick(i));
+        }
+        return this;
+    }
+
+    public void increaseQuick(int v, long amount) {
+        this._data[v] += amount;
+    }
+
+    /**
+     * Returns whether or not every vertex has few enough grains to fit in a
+     * SandpileConfiguration.
+     */
+    public boolean fitsInInt() {
+        for (int i = 0; i < this.size(); i++) {
+            long sand = this.getQuick(i);
+            if (sand != (int) sand) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns this configuration as a SandpileConfiguration.
+     * @throws ArithmeticException If a vertex has too much sand for an int.
+     */
+    public SandpileConfiguration toNarrow() {
+        if (!fitsInInt()) {
+            throw new ArithmeticException("Configuration has too much sand on a vertex for an int.");
+        }
+        return toSaturated();
+    }
+
+    /**
+     * Returns this configuration as a SandpileConfiguration, with vertices
+     * that have too much sand for an int getting as much as an int can hold.
+     */
+    public SandpileConfiguration toSaturated() {
+        SandpileConfiguration result = new SandpileConfiguration(this.size());
+        for (int i = 0; i < this.size(); i++) {
+            result.add(saturate(this.getQuick(i)));
+        }
+        return result;
+    }
+
+    static int saturate(long sand) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, sand));
+    }
+
+    /**
+     * Gives direct access to the array backing this configuration. The array
+     * may be longer than size(), and stops being used if the configuration
+     * grows, so only hold on to it while the size is fixed.
+     */
+    long[] getData() {
+        return this._data;
+    }
+}